@@ -0,0 +1,95 @@
+package ch.heigvd;
+
+import ch.heigvd.auth.InMemorySessionStore;
+import ch.heigvd.auth.SessionStore;
+import ch.heigvd.messages.InMemoryMessageStore;
+import ch.heigvd.messages.Message;
+import ch.heigvd.messages.MessagesController;
+import ch.heigvd.persistence.Database;
+import ch.heigvd.persistence.Journal;
+import ch.heigvd.users.InMemoryUserStore;
+import ch.heigvd.users.User;
+import ch.heigvd.users.UserStore;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// Deterministic data sets for the benchmarks: same seed, same users and messages on every run.
+// Nothing is journaled (Journal.NONE), the benchmarks measure the in-memory paths.
+public final class Fixtures {
+    // Messages are one second apart from this date
+    public static final Instant START = Instant.parse("2025-01-01T00:00:00Z");
+    public static final String PASSWORD = "benchmark-password";
+
+    // Vocabulary of the message contents, drawn with a skewed distribution: a few words are in most
+    // messages, most words in a few (as in real text, which matters for the search index)
+    private static final int VOCABULARY = 20_000;
+    private static final int WORDS_PER_MESSAGE = 12;
+
+    private Fixtures() {
+    }
+
+    // user1..userN, all with the same stored password (hashing once per user would dominate the setup)
+    public static ConcurrentMap<Integer, User> users(int count, String storedPassword) {
+        ConcurrentMap<Integer, User> users = new ConcurrentHashMap<>(count * 2);
+        for (int i = 1; i <= count; i++) {
+            users.put(i, new User(i, username(i), username(i) + "@example.com", storedPassword, false));
+        }
+        return users;
+    }
+
+    // Messages spread round-robin over the users, oldest first
+    public static ConcurrentMap<Integer, Message> messages(int count, int users) {
+        SplittableRandom random = new SplittableRandom(42);
+        ConcurrentMap<Integer, Message> messages = new ConcurrentHashMap<>(count * 2);
+        for (int i = 1; i <= count; i++) {
+            messages.put(i, new Message(1 + i % users, i, START.plusSeconds(i), null, content(random)));
+        }
+        return messages;
+    }
+
+    // The maps of a server holding 'messages' messages and their users, without sessions
+    public static Database database(int messages) {
+        int users = usersFor(messages);
+        return new Database(users(users, PASSWORD), messages(messages, users), new ConcurrentHashMap<>());
+    }
+
+    public static UserStore userStore(ConcurrentMap<Integer, User> users) {
+        return new InMemoryUserStore(users, Journal.NONE);
+    }
+
+    public static MessagesController messagesController(ConcurrentMap<Integer, Message> messages, UserStore users,
+                                                        SessionStore sessions) {
+        return new MessagesController(new InMemoryMessageStore(messages, Journal.NONE), users, sessions, true);
+    }
+
+    public static SessionStore sessions() {
+        return new InMemorySessionStore(new ConcurrentHashMap<>(), Journal.NONE, Duration.ofMinutes(30), Duration.ofHours(12));
+    }
+
+    // Users of a store of 'messages' messages: 100 messages each on average
+    public static int usersFor(int messages) {
+        return Math.max(10, messages / 100);
+    }
+
+    public static String username(int userId) {
+        return "user" + userId;
+    }
+
+    // The n-th word of the vocabulary, n = 0 being the most frequent
+    public static String word(int n) {
+        return "w" + Integer.toString(n, 36);
+    }
+
+    private static String content(SplittableRandom random) {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < WORDS_PER_MESSAGE; i++) {
+            double r = random.nextDouble();
+            content.append(i == 0 ? "" : " ").append(word((int) (VOCABULARY * r * r * r)));
+        }
+        return content.toString();
+    }
+}
@@ -0,0 +1,218 @@
+package ch.heigvd;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Closed-loop HTTP load against a running server, as wrk does: 'connections' keep-alive connections, each sending
+// its next request as soon as the previous response is read (one virtual thread per connection).
+// Not a JMH benchmark: it measures the whole server (Jetty, its threads, the handlers) over real sockets.
+//
+//   java -cp target/benchmarks.jar ch.heigvd.LoadTest [url] [connections] [seconds] [path...]
+//
+// Signs up and logs in the 'loadtest' user, posts a batch of messages when the feed is empty, then cycles through
+// the paths (default: the cached feed, and a page filtered by author, scanned on every request).
+public final class LoadTest {
+    private static final String USERNAME = "loadtest";
+    private static final String PASSWORD = "loadtest-password";
+    private static final int WARMUP_SECONDS = 10;
+    private static final int TIMEOUT_MILLIS = (int) TimeUnit.SECONDS.toMillis(30);
+
+    private static final Recorder latencies = new Recorder(TimeUnit.MINUTES.toMicros(1), 2);
+    private static final LongAdder responses = new LongAdder();
+    private static final LongAdder failures = new LongAdder();
+    private static final LongAdder errors = new LongAdder();
+    private static final LongAdder opened = new LongAdder();
+    private static volatile boolean recording;
+
+    private LoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        URI base = URI.create(args.length > 0 ? args[0] : "http://localhost:8080");
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+        List<String> paths = args.length > 3
+                ? List.of(args).subList(3, args.length)
+                : List.of("/messages", "/messages?username=" + USERNAME + "&limit=100");
+
+        String cookie = login(base);
+        byte[][] requests = new byte[paths.size()][];
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = ("GET " + paths.get(i) + " HTTP/1.1\r\n"
+                    + "Host: " + base.getHost() + "\r\n"
+                    + "Cookie: session_id=" + cookie + "\r\n"
+                    + "Accept-Encoding: gzip\r\n"
+                    + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(WARMUP_SECONDS + seconds);
+        List<Thread> threads = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            int first = i;
+            threads.add(Thread.ofVirtual().start(() -> run(base, requests, first, end)));
+        }
+
+        // Only the responses after the warmup count, by then every connection is open
+        Thread.sleep(TimeUnit.SECONDS.toMillis(WARMUP_SECONDS));
+        latencies.reset();
+        responses.reset();
+        failures.reset();
+        errors.reset();
+        recording = true;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Histogram histogram = latencies.getIntervalHistogram();
+        System.out.printf(Locale.ROOT, "%d connections (%d opened), %d s on %s%n",
+                connections, opened.sum(), seconds, paths);
+        System.out.printf(Locale.ROOT, "requests/s  %.0f%n", responses.sum() / (double) seconds);
+        System.out.printf(Locale.ROOT, "non-2xx     %d%n", failures.sum());
+        System.out.printf(Locale.ROOT, "errors      %d%n", errors.sum());
+        for (double percentile : new double[]{50, 90, 99, 99.9}) {
+            System.out.printf(Locale.ROOT, "p%-10s %.1f ms%n", percentile, histogram.getValueAtPercentile(percentile) / 1e3);
+        }
+        System.out.printf(Locale.ROOT, "max         %.1f ms%n", histogram.getMaxValue() / 1e3);
+    }
+
+    // One connection, opened again after an error until the end of the run
+    private static void run(URI base, byte[][] requests, int first, long end) {
+        int next = first;
+        while (System.nanoTime() < end) {
+            try (Socket socket = new Socket()) {
+                // A connection or a response that hangs counts as an error instead of stalling the run
+                socket.connect(new InetSocketAddress(base.getHost(), base.getPort()), TIMEOUT_MILLIS);
+                socket.setSoTimeout(TIMEOUT_MILLIS);
+                opened.increment();
+                socket.setTcpNoDelay(true);
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                InputStream in = new BufferedInputStream(socket.getInputStream(), 16 * 1024);
+                while (System.nanoTime() < end) {
+                    long start = System.nanoTime();
+                    out.write(requests[next++ % requests.length]);
+                    out.flush();
+                    int status = readResponse(in);
+                    if (recording) {
+                        latencies.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start),
+                                TimeUnit.MINUTES.toMicros(1)));
+                        responses.increment();
+                        if (status / 100 != 2) {
+                            failures.increment();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                if (recording) {
+                    errors.increment();
+                }
+            }
+        }
+    }
+
+    // Read one response (status line, headers, then a Content-Length or chunked body) and return its status
+    private static int readResponse(InputStream in) throws IOException {
+        String statusLine = readLine(in);
+        int status = Integer.parseInt(statusLine.substring(9, 12));
+        long length = 0;
+        boolean chunked = false;
+        for (String header = readLine(in); !header.isEmpty(); header = readLine(in)) {
+            String lower = header.toLowerCase(Locale.ROOT);
+            if (lower.startsWith("content-length:")) {
+                length = Long.parseLong(lower.substring(15).trim());
+            } else if (lower.startsWith("transfer-encoding:") && lower.contains("chunked")) {
+                chunked = true;
+            }
+        }
+        if (!chunked) {
+            skip(in, length);
+            return status;
+        }
+        for (long size = Long.parseLong(readLine(in).trim(), 16); size > 0; size = Long.parseLong(readLine(in).trim(), 16)) {
+            skip(in, size);
+            readLine(in);
+        }
+        readLine(in);
+        return status;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int c = in.read(); c != '\n'; c = in.read()) {
+            if (c < 0) {
+                throw new EOFException("Connection closed by the server");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    private static void skip(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException("Connection closed by the server");
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+
+    // Session cookie of the load test user, with some messages in the feed
+    private static String login(URI base) throws IOException, InterruptedException {
+        HttpClient client = HttpClient.newHttpClient();
+        String credentials = "{\"username\":\"" + USERNAME + "\",\"password\":\"" + PASSWORD + "\"}";
+        send(client, base, "/users", "{\"username\":\"" + USERNAME + "\",\"email\":\"" + USERNAME
+                + "@example.com\",\"password\":\"" + PASSWORD + "\"}", null);
+        HttpResponse<String> login = send(client, base, "/login", credentials, null);
+        String cookie = login.headers().allValues("Set-Cookie").stream()
+                .filter(value -> value.startsWith("session_id="))
+                .map(value -> value.substring("session_id=".length(), value.indexOf(';') > 0 ? value.indexOf(';') : value.length()))
+                .findFirst()
+                .orElseThrow(() -> new IllegalStateException("Login failed: " + login.statusCode() + " " + login.body()));
+
+        HttpResponse<String> feed = client.send(HttpRequest.newBuilder(base.resolve("/messages?limit=2"))
+                .header("Cookie", "session_id=" + cookie).build(), HttpResponse.BodyHandlers.ofString());
+        if (feed.headers().firstValue("X-Next-Cursor").isEmpty()) {
+            StringBuilder batch = new StringBuilder("[");
+            for (int i = 0; i < 100; i++) {
+                batch.append(i > 0 ? "," : "").append("{\"content\":\"load test message ").append(i).append("\"}");
+            }
+            send(client, base, "/messages/batch", batch.append(']').toString(), cookie);
+        }
+        return cookie;
+    }
+
+    private static HttpResponse<String> send(HttpClient client, URI base, String path, String body, String cookie)
+            throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder(base.resolve(path))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body));
+        if (cookie != null) {
+            request.header("Cookie", "session_id=" + cookie);
+        }
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+}
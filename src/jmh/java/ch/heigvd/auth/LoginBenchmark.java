@@ -0,0 +1,77 @@
+package ch.heigvd.auth;
+
+import ch.heigvd.Fixtures;
+import ch.heigvd.users.UserStore;
+
+import io.javalin.http.Context;
+import io.javalin.http.servlet.JavalinServletContext;
+import io.javalin.mock.ContextMock;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// POST /login through the real handler: body parsing, user lookup, password check on the hashing pool
+// and session creation. The password cost dominates at production settings: -p iterations=600000.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoginBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    int users;
+
+    @Param({"1000"})
+    int iterations;
+
+    private SessionStore sessions;
+    private PasswordHasher passwords;
+    private AuthController controller;
+    private ContextMock request;
+    private byte[] body;
+    private int next;
+
+    @Setup
+    public void setup() {
+        passwords = new PasswordHasher(iterations, Runtime.getRuntime().availableProcessors(), 1024);
+        UserStore userStore = Fixtures.userStore(Fixtures.users(users, passwords.hash(Fixtures.PASSWORD)));
+        sessions = Fixtures.sessions();
+        controller = new AuthController(userStore,
+                Fixtures.messagesController(Fixtures.messages(1000, users), userStore, sessions),
+                sessions, passwords);
+
+        // The request is configured again on every execution, with the body of the current invocation
+        request = ContextMock.create(config -> {
+            config.getReq().method = "POST";
+            config.getReq().contentType = "application/json";
+            config.getReq().contentLength = body.length;
+            config.getReq().inputStream = new ByteArrayInputStream(body);
+            // The mocked response fails on a cookie when it has no Set-Cookie header yet
+            config.getRes().headers.put("Set-Cookie", "");
+        });
+    }
+
+    @TearDown
+    public void tearDown() {
+        sessions.close();
+        passwords.close();
+    }
+
+    @Benchmark
+    public Context login() {
+        String username = Fixtures.username(1 + next++ % users);
+        body = ("{\"username\":\"" + username + "\",\"password\":\"" + Fixtures.PASSWORD + "\"}")
+                .getBytes(StandardCharsets.UTF_8);
+
+        Context ctx = request.execute(controller::login);
+
+        // The mock does not run the async part of the handler (password check, session cookie): run it here,
+        // a failed login fails the benchmark
+        ((JavalinServletContext) ctx).getUserFutureSupplier$javalin().get().join();
+        return ctx;
+    }
+}
@@ -0,0 +1,48 @@
+package ch.heigvd.messages;
+
+import ch.heigvd.Fixtures;
+import ch.heigvd.auth.SessionStore;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// MessagesController.deleteAllMessagesForUser (account deletion): each call removes one user's messages
+// (100 on average) from the map and every index. The deletions are destructive, so each iteration works
+// on a freshly built store and deletes BATCH distinct users, timed as a whole.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, batchSize = DeleteUserBenchmark.BATCH)
+@Measurement(iterations = 10, batchSize = DeleteUserBenchmark.BATCH)
+@Fork(1)
+public class DeleteUserBenchmark {
+    static final int BATCH = 10;
+
+    @Param({"1000", "100000", "1000000"})
+    int messages;
+
+    private SessionStore sessions;
+    private MessagesController controller;
+    private int users;
+    private int next;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        users = Fixtures.usersFor(messages);
+        sessions = Fixtures.sessions();
+        controller = Fixtures.messagesController(Fixtures.messages(messages, users),
+                Fixtures.userStore(Fixtures.users(users, Fixtures.PASSWORD)), sessions);
+        next = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        sessions.close();
+    }
+
+    @Benchmark
+    public boolean deleteAllMessagesForUser() {
+        return controller.deleteAllMessagesForUser(1 + next++ % users);
+    }
+}
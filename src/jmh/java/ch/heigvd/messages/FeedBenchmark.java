@@ -0,0 +1,110 @@
+package ch.heigvd.messages;
+
+import ch.heigvd.Fixtures;
+import ch.heigvd.auth.SessionStore;
+import ch.heigvd.users.User;
+
+import io.javalin.http.Context;
+import io.javalin.mock.ContextMock;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+// GET /messages and GET /messages/search, run through the real handlers on mocked requests
+// (the mock itself costs about a microsecond per request, see 'baseline').
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FeedBenchmark {
+    // 10M needs a larger heap: -p messages=10000000 -jvmArgsAppend -Xmx16g
+    @Param({"1000", "100000", "1000000"})
+    int messages;
+
+    private SessionStore sessions;
+    private MessagesController controller;
+
+    private ContextMock feed;
+    private ContextMock feedPage;
+    private ContextMock byUser;
+    private ContextMock searchRare;
+    private ContextMock searchCommon;
+
+    @Setup
+    public void setup() {
+        int users = Fixtures.usersFor(messages);
+        ConcurrentMap<Integer, User> userMap = Fixtures.users(users, Fixtures.PASSWORD);
+        sessions = Fixtures.sessions();
+        controller = Fixtures.messagesController(Fixtures.messages(messages, users), Fixtures.userStore(userMap), sessions);
+
+        // First page as the pollers ask for it (cached rendering)
+        feed = ContextMock.create(config -> config.getReq().addHeader("Accept-Encoding", "gzip"));
+        // A page further in the timeline, located and streamed on every request
+        String middle = new MessageIndex.Key(Fixtures.START.plusSeconds(messages / 2), messages / 2).toPosition();
+        feedPage = query("since=01-01-2025&limit=100&cursor="
+                + Base64.getUrlEncoder().withoutPadding().encodeToString(middle.getBytes(StandardCharsets.UTF_8)));
+        byUser = query("username=" + Fixtures.username(users / 2) + "&limit=100");
+        // A word in a few messages, then a common one with a rarer one
+        searchRare = query("q=" + Fixtures.word(500) + "&limit=20");
+        searchCommon = query("q=" + Fixtures.word(0) + "+" + Fixtures.word(300) + "&limit=20");
+    }
+
+    @TearDown
+    public void tearDown() {
+        sessions.close();
+    }
+
+    @Benchmark
+    public Context baseline() {
+        return feed.execute(ctx -> {
+        });
+    }
+
+    @Benchmark
+    public Context feed() {
+        return feed.execute(controller::getAll);
+    }
+
+    @Benchmark
+    public Context feedPage() {
+        return feedPage.execute(controller::getAll);
+    }
+
+    @Benchmark
+    public Context feedByUser() {
+        return byUser.execute(controller::getAll);
+    }
+
+    @Benchmark
+    public Context searchRare() {
+        return searchRare.execute(controller::search);
+    }
+
+    @Benchmark
+    public Context searchCommon() {
+        return searchCommon.execute(controller::search);
+    }
+
+    private static ContextMock query(String queryString) {
+        return ContextMock.create(config -> {
+            config.getReq().queryString = queryString;
+            config.getRes().outputStream = new Discard();
+        });
+    }
+
+    // The mocked response stream is written one byte at a time (a synchronized call each), which would
+    // outweigh the serialization itself: streamed bodies are only counted
+    static class Discard extends ByteArrayOutputStream {
+        @Override
+        public void write(int b) {
+            count++;
+        }
+    }
+}
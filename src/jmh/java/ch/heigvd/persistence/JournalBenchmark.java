@@ -0,0 +1,95 @@
+package ch.heigvd.persistence;
+
+import ch.heigvd.Fixtures;
+import ch.heigvd.messages.Message;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// FileJournal on a temporary directory (on the disk of the JVM's java.io.tmpdir, set it to the data disk):
+//  - append: one mutation per call, each waiting for its fsync. With more threads, the appends waiting
+//    together share an fsync (group commit): compare -t 1 and -t 16
+//  - recover: replay of a journal of 'messages' MessageSaved records into empty maps, as at startup
+// Snapshots are disabled, see SnapshotBenchmark for those.
+@State(Scope.Benchmark)
+@Fork(1)
+public class JournalBenchmark {
+    @Param({"100000", "1000000"})
+    int messages;
+
+    private Path directory;
+    private FileJournal journal;
+    private List<Mutation> saved;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("journal-benchmark");
+        saved = new ArrayList<>(messages);
+        for (Message message : Fixtures.messages(messages, Fixtures.usersFor(messages)).values()) {
+            saved.add(new Mutation.MessageSaved(message));
+        }
+
+        // The journal replayed by 'recover', written as the server would with batches of appends
+        try (FileJournal writer = FileJournal.open(directory, Integer.MAX_VALUE, emptyDatabase())) {
+            for (int i = 0; i < saved.size(); i += 1000) {
+                writer.appendAll(saved.subList(i, Math.min(i + 1000, saved.size())));
+            }
+        }
+        journal = FileJournal.open(directory, Integer.MAX_VALUE, emptyDatabase());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        journal.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> {
+                try {
+                    Files.delete(file);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Appender {
+        int next;
+    }
+
+    @Benchmark
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3, time = 2)
+    @Measurement(iterations = 5, time = 2)
+    public void append(Appender appender) {
+        journal.append(saved.get(appender.next++ % saved.size()));
+    }
+
+    // Every call replays the whole journal (plus the empty segments left by the previous calls)
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Threads(1)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public int recover() {
+        Database database = emptyDatabase();
+        FileJournal.open(directory, Integer.MAX_VALUE, database).close();
+        return database.messages().size();
+    }
+
+    private static Database emptyDatabase() {
+        return new Database(new ConcurrentHashMap<>(), new ConcurrentHashMap<>(), new ConcurrentHashMap<>());
+    }
+}
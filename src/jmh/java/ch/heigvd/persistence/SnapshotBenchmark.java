@@ -0,0 +1,69 @@
+package ch.heigvd.persistence;
+
+import ch.heigvd.Fixtures;
+import ch.heigvd.messages.InMemoryMessageStore;
+import ch.heigvd.users.InMemoryUserStore;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// snapshot.bin of 'messages' messages and their users, in a temporary file (java.io.tmpdir):
+//  - write: the periodic snapshot of the journal
+//  - load: reading it back into empty maps
+//  - startup: load plus the indexes of the stores, the cold start of a server with a data directory
+// 10M needs a larger heap: -p messages=10000000 -jvmArgsAppend -Xmx16g
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SnapshotBenchmark {
+    @Param({"100000", "1000000"})
+    int messages;
+
+    private Database database;
+    private Path file;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        database = Fixtures.database(messages);
+        file = Files.createTempFile("snapshot-benchmark", ".bin");
+        BinarySnapshot.write(file, database, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        BinarySnapshot.write(file, database, 0);
+        return Files.size(file);
+    }
+
+    @Benchmark
+    public int load() throws IOException {
+        Database loaded = emptyDatabase();
+        BinarySnapshot.read(file, loaded);
+        return loaded.messages().size();
+    }
+
+    @Benchmark
+    public Object startup() throws IOException {
+        Database loaded = emptyDatabase();
+        BinarySnapshot.read(file, loaded);
+        new InMemoryUserStore(loaded.users(), Journal.NONE);
+        return new InMemoryMessageStore(loaded.messages(), Journal.NONE);
+    }
+
+    private static Database emptyDatabase() {
+        return new Database(new ConcurrentHashMap<>(), new ConcurrentHashMap<>(), new ConcurrentHashMap<>());
+    }
+}
@@ -0,0 +1,81 @@
+package ch.heigvd.utils;
+
+import ch.heigvd.Fixtures;
+import ch.heigvd.messages.Message;
+import ch.heigvd.users.User;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// JSON rendering of a page of users and messages: the typed views with their cached writers (Json.writerFor),
+// against the generic maps the handlers used to build, to keep an eye on what the views save.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonBenchmark {
+    // Page sizes: the default and the maximum limit
+    @Param({"100", "1000"})
+    int size;
+
+    private List<User.ListView> userViews;
+    private List<Message.MineView> messageViews;
+    private List<Map<String, Object>> userMaps;
+    private List<Map<String, Object>> messageMaps;
+
+    @Setup
+    public void setup() {
+        userViews = new ArrayList<>();
+        userMaps = new ArrayList<>();
+        for (User user : Fixtures.users(size, Fixtures.PASSWORD).values()) {
+            userViews.add(user.toListView());
+
+            Map<String, Object> map = new HashMap<>();
+            map.put("userId", user.userId());
+            map.put("username", user.username());
+            userMaps.add(map);
+        }
+
+        messageViews = new ArrayList<>();
+        messageMaps = new ArrayList<>();
+        for (Message message : Fixtures.messages(size, Fixtures.usersFor(size)).values()) {
+            messageViews.add(message.toMineView());
+
+            Map<String, Object> map = new HashMap<>();
+            map.put("msgId", message.msgId());
+            map.put("createdAt", message.createdAt());
+            map.put("editedAt", message.editedAt());
+            map.put("content", message.content());
+            messageMaps.add(map);
+        }
+    }
+
+    @Benchmark
+    public byte[] userViews() throws JsonProcessingException {
+        return Json.writerFor(userViews.getClass()).writeValueAsBytes(userViews);
+    }
+
+    @Benchmark
+    public byte[] userMaps() throws JsonProcessingException {
+        return Json.MAPPER.writeValueAsBytes(userMaps);
+    }
+
+    @Benchmark
+    public byte[] messageViews() throws JsonProcessingException {
+        return Json.writerFor(messageViews.getClass()).writeValueAsBytes(messageViews);
+    }
+
+    @Benchmark
+    public byte[] messageMaps() throws JsonProcessingException {
+        return Json.MAPPER.writeValueAsBytes(messageMaps);
+    }
+}
@@ -1,34 +1,99 @@
 package ch.heigvd;
 
 import ch.heigvd.auth.AuthController;
+import ch.heigvd.auth.InMemorySessionStore;
+import ch.heigvd.auth.JdbcSessionStore;
+import ch.heigvd.auth.PasswordHasher;
+import ch.heigvd.auth.Session;
+import ch.heigvd.auth.SessionFilter;
+import ch.heigvd.auth.SessionStore;
+import ch.heigvd.auth.SignedSessionStore;
+import ch.heigvd.users.InMemoryUserStore;
+import ch.heigvd.users.JdbcUserStore;
 import ch.heigvd.users.User;
+import ch.heigvd.users.UserStore;
 import ch.heigvd.users.UsersController;
+import ch.heigvd.messages.InMemoryMessageStore;
+import ch.heigvd.messages.JdbcMessageStore;
 import ch.heigvd.messages.Message;
+import ch.heigvd.messages.MessageStore;
 import ch.heigvd.messages.MessagesController;
+import ch.heigvd.persistence.Database;
+import ch.heigvd.persistence.FileJournal;
+import ch.heigvd.persistence.Journal;
+import ch.heigvd.persistence.SqlDatabase;
+import ch.heigvd.replication.Replica;
+import ch.heigvd.replication.ReplicationFollower;
+import ch.heigvd.replication.ReplicationLeader;
+import ch.heigvd.replication.ReplicationLog;
+import ch.heigvd.replication.WriteForwarder;
+import ch.heigvd.utils.Config;
+import ch.heigvd.utils.Json;
+import ch.heigvd.utils.Metrics;
+import ch.heigvd.utils.RateLimiter;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
-import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import io.javalin.Javalin;
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import io.javalin.http.HandlerType;
+import io.javalin.http.ServiceUnavailableResponse;
 import io.javalin.http.staticfiles.Location;
 import io.javalin.json.JavalinJackson;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.function.UnaryOperator;
+
+import static ch.heigvd.auth.SessionFilter.Access.AUTHENTICATED;
 
 public class Main {
     public static final int PORT = 8080;
 
     public static void main(String[] args) {
-        ObjectMapper mapper = new ObjectMapper()
-                .registerModule(new JavaTimeModule())
-                .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+        // Metrics of every route, timed from before the session check to after the response (even an error)
+        Metrics metrics = new Metrics(Config.get("JITSUSMON_METRICS_TOKEN", null));
 
         Javalin app = Javalin.create(config -> {
 
+            // ---------------- Threads ----------------
+            // Requests run on virtual threads instead of the Jetty pool, cheap to block (journal fsync, hashing).
+            // The selectors and acceptors stay on the platform threads of the pool: on virtual threads (Javalin's
+            // useVirtualThreads) they queue behind the requests, and the connections stall under load
+            if (Config.getBoolean("JITSUSMON_VIRTUAL_THREADS", false)) {
+                QueuedThreadPool threadPool = new QueuedThreadPool();
+                threadPool.setName("JettyServerThreadPool");
+                threadPool.setVirtualThreadsExecutor(Executors.newVirtualThreadPerTaskExecutor());
+                config.jetty.threadPool = threadPool;
+            }
+
+            // ---------------- Client IP ----------------
+            // Behind the reverse proxy, the client is the last address it appended to X-Forwarded-For
+            if (Config.getBoolean("JITSUSMON_TRUST_PROXY", false)) {
+                config.contextResolver.ip = ctx -> {
+                    String forwarded = ctx.header("X-Forwarded-For");
+                    if (forwarded == null || forwarded.isBlank()) {
+                        return ctx.req().getRemoteAddr();
+                    }
+                    return forwarded.substring(forwarded.lastIndexOf(',') + 1).trim();
+                };
+            }
+
+            // ---------------- Metrics ----------------
+            // The request logger runs once the response is complete, also after an exception or a failed future
+            // (the afterMatched hooks are skipped then)
+            config.requestLogger.http((ctx, elapsed) -> metrics.end(ctx));
+
             // ---------------- JSON Mapper ----------------
-            config.jsonMapper(new JavalinJackson(mapper, false));
+            config.jsonMapper(new JavalinJackson(Json.MAPPER, false));
 
             // ---------------- Static Files ----------------
             config.staticFiles.add(staticFileConfig -> {
@@ -38,53 +103,239 @@ public class Main {
             });
         });
 
-        // This will serve as our database
-        ConcurrentMap<Integer, User> users = new ConcurrentHashMap<>();
-        ConcurrentMap<Integer, Message> messages = new ConcurrentHashMap<>();
-        ConcurrentMap<String, Integer> cookies = new ConcurrentHashMap<>();
+        // Storage: the maps of this JVM ("memory", with the journal when a data directory is configured),
+        // or an embedded H2 database ("h2", in the data directory, in memory without one)
+        String dataDir = Config.get("JITSUSMON_DATA_DIR", null);
+        String storage = Config.get("JITSUSMON_STORAGE", "memory");
+
+        // Replication: the "leader" streams its mutations to the "follower"s, which serve the reads from their
+        // copy and forward the writes to the leader. Both keep the state in memory
+        String role = Config.get("JITSUSMON_REPLICATION_ROLE", "none");
+        if (!List.of("none", "leader", "follower").contains(role)) {
+            throw new IllegalArgumentException("JITSUSMON_REPLICATION_ROLE must be none, leader or follower, not " + role);
+        }
+        boolean follower = role.equals("follower");
+        // The followers forward the logins and signups with the client in X-Forwarded-For: a leader ignoring it
+        // would count them all in the follower's rate limit bucket
+        if (role.equals("leader") && !Config.getBoolean("JITSUSMON_TRUST_PROXY", false)) {
+            throw new IllegalArgumentException("A replication leader needs JITSUSMON_TRUST_PROXY=true");
+        }
+
+        Journal journal = Journal.NONE;
+        ReplicationLog replicationLog = null;
+        SqlDatabase database = null;
+        Database state = null;
+        UserStore users;
+        MessageStore messages;
+        ConcurrentMap<String, Session> cookies = new ConcurrentHashMap<>();
+
+        if (storage.equals("h2")) {
+            if (!role.equals("none")) {
+                throw new IllegalArgumentException("Replication needs JITSUSMON_STORAGE=memory");
+            }
+            // Parsed statements are cached per connection, enough of them for every statement of the stores
+            String url = dataDir != null
+                    ? "jdbc:h2:file:" + Path.of(dataDir).toAbsolutePath().resolve("jitsusmon") + ";QUERY_CACHE_SIZE=64"
+                    : "jdbc:h2:mem:jitsusmon;DB_CLOSE_DELAY=-1;QUERY_CACHE_SIZE=64";
+            database = SqlDatabase.open(url, Config.getInt("JITSUSMON_DB_CONNECTIONS", 16));
+            users = new JdbcUserStore(database);
+            messages = new JdbcMessageStore(database);
+        } else if (storage.equals("memory")) {
+            // Persistence: reload the previous runs when a data directory is configured, memory only otherwise
+            ConcurrentMap<Integer, User> userMap = new ConcurrentHashMap<>();
+            ConcurrentMap<Integer, Message> messageMap = new ConcurrentHashMap<>();
+            state = new Database(userMap, messageMap, cookies);
+            // A follower starts empty and gets everything from the leader
+            if (dataDir != null && !follower) {
+                journal = FileJournal.open(
+                        Path.of(dataDir),
+                        Config.getInt("JITSUSMON_SNAPSHOT_EVERY", 100_000),
+                        state);
+            }
+            if (role.equals("leader")) {
+                replicationLog = new ReplicationLog(journal, Config.getInt("JITSUSMON_REPLICATION_BACKLOG", 100_000));
+                journal = replicationLog;
+            }
+            users = new InMemoryUserStore(userMap, journal);
+            messages = new InMemoryMessageStore(messageMap, journal);
+        } else {
+            throw new IllegalArgumentException("JITSUSMON_STORAGE must be memory or h2, not " + storage);
+        }
+
+        // Sessions expire after some idle time, and in any case some hours after login.
+        // With a secret, tokens are signed and validated by any instance (no sticky sessions needed)
+        Duration sessionIdle = Duration.ofMinutes(Config.getInt("JITSUSMON_SESSION_IDLE_MINUTES", 30));
+        Duration sessionMaxAge = Duration.ofHours(Config.getInt("JITSUSMON_SESSION_MAX_HOURS", 12));
+        String sessionSecret = Config.get("JITSUSMON_SESSION_SECRET", null);
+        SessionStore sessions;
+        if (sessionSecret != null && !role.equals("none")) {
+            // Revocations of signed tokens stay on the node that made them: a logout would be ignored by the others
+            throw new IllegalArgumentException("JITSUSMON_SESSION_SECRET cannot be used with replication");
+        }
+        if (sessionSecret != null) {
+            sessions = new SignedSessionStore(sessionSecret.getBytes(StandardCharsets.UTF_8), sessionMaxAge);
+        } else if (database != null) {
+            sessions = new JdbcSessionStore(database, sessionIdle, sessionMaxAge);
+        } else if (follower) {
+            // The leader counts the idle time (the follower touches the sessions it serves there) and
+            // replicates the closing of the sessions, only the absolute expiry is checked here
+            sessions = new InMemorySessionStore(cookies, journal, sessionMaxAge, sessionMaxAge);
+        } else {
+            sessions = new InMemorySessionStore(cookies, journal, sessionIdle, sessionMaxAge);
+        }
+
+        // Password hashing, on its own bounded pool
+        PasswordHasher passwords = new PasswordHasher(
+                Config.getInt("JITSUSMON_PASSWORD_ITERATIONS", PasswordHasher.DEFAULT_ITERATIONS),
+                Config.getInt("JITSUSMON_PASSWORD_THREADS", Runtime.getRuntime().availableProcessors()),
+                Config.getInt("JITSUSMON_PASSWORD_QUEUE", 64));
+
+        Journal opened = journal;
+        SqlDatabase openedDatabase = database;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            sessions.close();
+            passwords.close();
+            opened.close();
+            if (openedDatabase != null) {
+                openedDatabase.close();
+            }
+        }));
+
+        // Create welcome admin and message on first start (before the controllers, so that they get logged)
+        if (users.size() == 0 && !follower) {
+            Welcome(users, messages, passwords);
+        }
 
         // Controllers
-        AuthController authController = new AuthController(users, messages,cookies);
-        MessagesController messagesController = new MessagesController(messages, users, cookies);
-        UsersController usersController = new UsersController(users, cookies, messagesController);
+        MessagesController messagesController = new MessagesController(
+                messages, users, sessions, Config.getBoolean("JITSUSMON_FEED_GZIP", true));
+        AuthController authController = new AuthController(users, messagesController, sessions, passwords);
+        UsersController usersController = new UsersController(users, sessions, messagesController, passwords);
+
+        // Replication endpoints
+        ReplicationFollower replicationFollower = null;
+        WriteForwarder forwarder = null;
+        if (replicationLog != null) {
+            ReplicationLeader leader = new ReplicationLeader(
+                    replicationLog, state, sessions, Config.getInt("JITSUSMON_REPLICATION_PORT", 8081));
+            Runtime.getRuntime().addShutdownHook(new Thread(leader::close));
+        }
+        if (follower) {
+            String address = Config.get("JITSUSMON_REPLICATION_LEADER", null);
+            if (address == null || address.lastIndexOf(':') < 0) {
+                throw new IllegalArgumentException("JITSUSMON_REPLICATION_LEADER must be host:port of the leader");
+            }
+            String host = address.substring(0, address.lastIndexOf(':'));
+            int port = Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+            replicationFollower = new ReplicationFollower(
+                    new InetSocketAddress(host, port),
+                    new Replica(state, users, messagesController,
+                            sessions instanceof InMemorySessionStore local ? local : null));
+            forwarder = new WriteForwarder(
+                    URI.create(Config.get("JITSUSMON_REPLICATION_LEADER_URL", "http://" + host + ":" + PORT)),
+                    replicationFollower);
+            Runtime.getRuntime().addShutdownHook(new Thread(replicationFollower::close));
+        }
 
-        // Create welcome admin and message
-        Welcome(users, messages);
+        app.beforeMatched(metrics::start);
+
+        metrics.gauge("users", "Registered users.", users::size);
+        metrics.gauge("messages", "Stored messages.", messages::size);
+        metrics.gauge("sessions", "Open sessions (revoked tokens with signed sessions).", sessions::size);
+        if (database != null) {
+            metrics.gauge("db_connections_active", "Database connections in use.", database::activeConnections);
+        }
+        metrics.gauge("feed_not_modified_ratio", "Share of GET /messages answered 304 Not Modified.",
+                () -> metrics.share(new Metrics.Route("GET", "/messages"), 3));
+
+        // Leader: each write response gives the seq of the log after it, followers wait for it (read-your-writes)
+        if (replicationLog != null) {
+            ReplicationLog log = replicationLog;
+            app.afterMatched(ctx -> {
+                if (ctx.method() != HandlerType.GET) {
+                    ctx.header(WriteForwarder.SEQ_HEADER, String.valueOf(log.lastSeq()));
+                }
+            });
+        }
+
+        // Follower: nothing is served before the first snapshot from the leader
+        ReplicationFollower replica = replicationFollower;
+        if (replica != null) {
+            metrics.gauge("replication_lag", "Mutations of the leader not applied here yet.", replica::lag);
+            app.beforeMatched(ctx -> {
+                if (!replica.isReady() && !ctx.path().equals("/metrics")) {
+                    throw new ServiceUnavailableResponse("Replica not synchronized yet, retry later");
+                }
+            });
+        }
+
+        // Session check of the AUTHENTICATED routes, done once before the handler
+        SessionFilter sessionFilter = new SessionFilter(sessions);
+        app.beforeMatched(sessionFilter::handle);
+
+        // Follower: sessions used here stay alive on the leader
+        if (replica != null) {
+            app.beforeMatched(ctx -> {
+                if (ctx.routeRoles().contains(AUTHENTICATED)) {
+                    replica.touch(SessionFilter.sessionId(ctx));
+                }
+            });
+        }
+
+        // Rate limits: signup and login per client IP, posting and batches per user
+        RateLimiter authLimiter = new RateLimiter("auth",
+                Config.getInt("JITSUSMON_AUTH_RATE_PER_MINUTE", 10), Duration.ofMinutes(1));
+        RateLimiter postLimiter = new RateLimiter("messages",
+                Config.getInt("JITSUSMON_MESSAGE_RATE_PER_MINUTE", 60), Duration.ofMinutes(1));
+        RateLimiter batchLimiter = new RateLimiter("batches",
+                Config.getInt("JITSUSMON_BATCH_RATE_PER_MINUTE", 120), Duration.ofMinutes(1));
+
+        // On a follower, the writes are handled by the leader (which applies the rate limits)
+        WriteForwarder forward = forwarder;
+        UnaryOperator<Handler> write = local -> forward != null ? forward::handle : local;
 
         // Users routes
-        app.post  ("/users",          usersController::create);
-        app.patch ("/users/{userId}", usersController::update);
+        app.post  ("/users",          write.apply(authLimiter.limit(Context::ip, usersController::create)));
+        app.patch ("/users/{userId}", write.apply(usersController::update),  AUTHENTICATED);
         app.get   ("/users",          usersController::getMany);
         app.get   ("/users/{userId}", usersController::getOne);
-        app.delete("/users/{userId}", usersController::delete);
+        app.delete("/users/{userId}", write.apply(usersController::delete),  AUTHENTICATED);
 
         // Auth routes
-        app.post  ("/login",    authController::login);
-        app.post  ("/logout",   authController::logout);
-        app.get   ("/profile",  authController::profile);
+        app.post  ("/login",    write.apply(authLimiter.limit(Context::ip, authController::login)));
+        app.post  ("/logout",   write.apply(authController::logout),  AUTHENTICATED);
+        app.get   ("/profile",  authController::profile, AUTHENTICATED);
 
         // Message Route
-        app.post  ("/messages",         messagesController::create);
-        app.patch ("/messages/{msgId}", messagesController::update);
-        app.get   ("/messages/mine",    messagesController::getMine);
-        app.get   ("/messages",         messagesController::getAll);
-        app.delete("/messages/{msgId}", messagesController::delete);
+        app.post  ("/messages",         write.apply(postLimiter.limit(SessionFilter::userId, messagesController::create)), AUTHENTICATED);
+        app.post  ("/messages/batch",   write.apply(batchLimiter.limit(SessionFilter::userId, messagesController::createBatch)), AUTHENTICATED);
+        app.post  ("/messages/batch/delete", write.apply(batchLimiter.limit(SessionFilter::userId, messagesController::deleteBatch)), AUTHENTICATED);
+        app.patch ("/messages/{msgId}", write.apply(messagesController::update), AUTHENTICATED);
+        app.get   ("/messages/mine",    messagesController::getMine,    AUTHENTICATED);
+        app.get   ("/messages/changes", messagesController::getChanges, AUTHENTICATED);
+        app.get   ("/messages/search",  messagesController::search,     AUTHENTICATED);
+        app.sse   ("/messages/events",  messagesController::events,     AUTHENTICATED);
+        app.get   ("/messages",         messagesController::getAll,     AUTHENTICATED);
+        app.delete("/messages/{msgId}", write.apply(messagesController::delete), AUTHENTICATED);
+
+        // Monitoring
+        app.get   ("/metrics", metrics::serve);
 
-        app.start(PORT);
+        app.start(Config.getInt("JITSUSMON_PORT", PORT));
     }
 
-    private static void Welcome(ConcurrentMap<Integer, User> users, ConcurrentMap<Integer, Message> messages) {
+    private static void Welcome(UserStore users, MessageStore messages, PasswordHasher passwords) {
         // Create admin user
         User admin = new User(
             0,
             "admin",
             "admin@heig-vd.ch",
-            "adminpassword",
+            passwords.hash("adminpassword"),
             true
         );
 
-        // Add admin user to users map
-        users.put(admin.userId(), admin);
+        // Add admin user to the users
+        users.insert(admin);
 
         // Create a welcome message
         Message welcomeMessage = new Message(
@@ -95,7 +346,7 @@ public class Main {
             "Welcome to the JitSUSmon chat!\nFeel free to explore and connect with others. ;¬)"
         );
 
-        // Add welcome message to messages map
-        messages.put(welcomeMessage.msgId(), welcomeMessage);
+        // Add welcome message to the messages
+        messages.insert(welcomeMessage);
     }
 }
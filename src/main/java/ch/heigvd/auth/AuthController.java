@@ -1,30 +1,33 @@
 package ch.heigvd.auth;
 
 import ch.heigvd.users.User;
-import ch.heigvd.messages.Message;
+import ch.heigvd.users.UserStore;
+import ch.heigvd.messages.MessagesController;
+import ch.heigvd.utils.Json;
 
 import io.javalin.http.*;
 
-import java.time.Instant;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CompletableFuture;
 
 public class AuthController {
-    private final ConcurrentMap<Integer, User> users;
-    private final ConcurrentMap<Integer, Message> messages;
-    private final ConcurrentMap<String, Integer> cookies;
+    private final UserStore users;
+    private final MessagesController messagesController;
+    private final SessionStore sessions;
+    private final PasswordHasher passwords;
 
-    public AuthController(ConcurrentMap<Integer, User> users, ConcurrentMap<Integer, Message> messages, ConcurrentMap<String, Integer> cookies) {
+    public AuthController(UserStore users, MessagesController messagesController, SessionStore sessions, PasswordHasher passwords) {
         this.users = users;
-        this.messages = messages;
-        this.cookies = cookies;
+        this.messagesController = messagesController;
+        this.sessions = sessions;
+        this.passwords = passwords;
     }
 
     public void login(Context ctx) {
         // ------------------------------------------------ LOGIN VALIDATION -------------------------------------------
         String session = ctx.cookie("session_id");
-        if (session != null && cookies.containsKey(session)) {
+        if (sessions.isValid(session)) {
             throw new BadRequestResponse("User is already logged in");
         }
 
@@ -57,29 +60,31 @@ public class AuthController {
         }
 
         // ------------------------------------------------- CONNECT USER ----------------------------------------------
-        for (User user : users.values()) {
-            boolean identityMatches =
-                    (username != null && !username.isBlank() && user.username() != null && user.username().equalsIgnoreCase(username))
-                    || (email != null && !email.isBlank() && user.email() != null && user.email().equalsIgnoreCase(email));
-
-            if (identityMatches && user.password().equals(password)) {
-                String sessionId = (Instant.now().toString() + user.userId()).hashCode() + "";
-                ctx.cookie("session_id", sessionId);
-                cookies.put(sessionId, user.userId());
-                ctx.status(HttpStatus.NO_CONTENT);
-                return;
-            }
+        // Username is tried first, then email (either one identifies the user)
+        User byUsername = username != null && !username.isBlank() ? users.findByUsername(username) : null;
+        User byEmail = email != null && !email.isBlank() ? users.findByEmail(email) : null;
+
+        if (byUsername == null && byEmail == null) {
+            throw new UnauthorizedResponse();
         }
 
-        throw new UnauthorizedResponse();
+        // Hashes are checked on the password pool, the request thread is released meanwhile
+        ctx.future(() -> authenticate(byUsername, byEmail, password).thenAccept(user -> {
+            if (user == null) {
+                throw new UnauthorizedResponse();
+            }
+            String sessionId = sessions.create(user.userId());
+            ctx.cookie("session_id", sessionId);
+            ctx.status(HttpStatus.NO_CONTENT);
+        }));
     }
 
     public void logout(Context ctx) {
         // ------------------------------------------------ COOKIE VALIDATION ------------------------------------------
-        String cookie = verifySessionId(ctx.cookie("session_id"));
+        String cookie = SessionFilter.sessionId(ctx);
 
         // -------------------------------------------------- REMOVE COOKIE --------------------------------------------
-        cookies.remove(cookie);
+        sessions.remove(cookie);
 
         // -------------------------------------------------- RESPONSE -------------------------------------------------
         ctx.removeCookie("session_id");
@@ -88,8 +93,7 @@ public class AuthController {
 
     public void profile(Context ctx) {
         // ------------------------------------------------ COOKIE VALIDATION ------------------------------------------
-        String session = verifySessionId(ctx.cookie("session_id"));
-        Integer userId = getUserIdFromSession(session);
+        Integer userId = SessionFilter.userId(ctx);
 
         // -------------------------------------------------- FETCH USER -----------------------------------------------
         User user = users.get(userId);
@@ -99,34 +103,43 @@ public class AuthController {
         }
 
         // -------------------------------------------------- COUNT MESSAGES -------------------------------------------
-        int count = 0;
-        for (Message message : messages.values()) {
-            if (message.userId().equals(userId)) {
-                count++;
-            }
-        }
+        int count = messagesController.countMessagesForUser(userId);
 
         // --------------------------------------------------- RESPONSE ------------------------------------------------
         ctx.status(HttpStatus.OK);
-        ctx.json(user.toProfileMap(count));
+        Json.write(ctx, user.toProfileView(count));
     }
 
     // Function utils
 
-    // Validate sessionId
-    String verifySessionId(String session) {
-        if (session == null || !cookies.containsKey(session)) {
-            throw new UnauthorizedResponse("Invalid or missing cookie");
+    // The first candidate whose password matches, or null
+    private CompletableFuture<User> authenticate(User first, User second, String password) {
+        if (first == null) {
+            return second != null ? authenticate(second, null, password) : CompletableFuture.completedFuture(null);
         }
-        return session;
+        return passwords.verifyAsync(password, first.password()).thenCompose(matches -> {
+            if (!matches) {
+                return authenticate(second, null, password);
+            }
+            upgradePassword(first, password);
+            return CompletableFuture.completedFuture(first);
+        });
     }
 
-    // Get userId from sessionId
-    Integer getUserIdFromSession(String session) {
-        Integer userId = cookies.get(session);
-        if (userId == null) {
-            throw new UnauthorizedResponse("Invalid session");
+    // Replace a plaintext password, or a hash with an older cost, now that the clear password is known
+    private void upgradePassword(User user, String password) {
+        if (!passwords.needsRehash(user.password())) {
+            return;
+        }
+        try {
+            // In the background, the login does not wait for it
+            passwords.hashAsync(password).thenAccept(hash -> {
+                User rehashed = new User(user.userId(), user.username(), user.email(), hash, user.isAdmin());
+                // Skipped if the user changed meanwhile (e.g. a password update)
+                users.replace(user, rehashed);
+            });
+        } catch (ServiceUnavailableResponse e) {
+            // Pool saturated: done at a later login
         }
-        return userId;
     }
 }
@@ -0,0 +1,183 @@
+package ch.heigvd.auth;
+
+import ch.heigvd.persistence.Journal;
+import ch.heigvd.persistence.Mutation;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Sessions kept in this JVM (and its journal), with random tokens and expiry.
+// A session ends after 'idleTtl' without requests, or 'absoluteTtl' after login whatever the activity.
+// Expired sessions are dropped on lookup and by a background sweep, and each user keeps at most
+// MAX_SESSIONS_PER_USER of them, so memory stays bounded however often clients log in.
+public class InMemorySessionStore implements SessionStore {
+    public static final int TOKEN_BYTES = 16; // 128 bits
+    public static final int MAX_SESSIONS_PER_USER = 16;
+
+    private static final Logger LOG = LoggerFactory.getLogger(InMemorySessionStore.class);
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final ConcurrentMap<String, Session> sessions;
+    private final ConcurrentMap<Integer, Set<String>> byUser = new ConcurrentHashMap<>();
+    private final Journal journal;
+    private final long idleTtl;
+    private final long absoluteTtl;
+    private final ScheduledExecutorService sweeper;
+
+    public InMemorySessionStore(ConcurrentMap<String, Session> sessions, Journal journal, Duration idleTtl, Duration absoluteTtl) {
+        this.sessions = sessions;
+        this.journal = journal;
+        this.idleTtl = idleTtl.toMillis();
+        this.absoluteTtl = absoluteTtl.toMillis();
+
+        // Index the sessions already present (recovered from disk)
+        for (Session session : sessions.values()) {
+            byUser.computeIfAbsent(session.userId(), id -> ConcurrentHashMap.newKeySet()).add(session.id());
+        }
+
+        long period = Math.max(1_000, Math.min(this.idleTtl, 60_000));
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "session-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.sweeper.scheduleAtFixedRate(this::sweep, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String create(Integer userId) {
+        String token = newToken();
+        Session session = new Session(token, userId, System.currentTimeMillis());
+        sessions.put(token, session);
+        Set<String> own = byUser.computeIfAbsent(userId, id -> ConcurrentHashMap.newKeySet());
+        own.add(token);
+        journal.append(new Mutation.SessionOpened(token, userId, session.createdAt()));
+
+        // Too many open sessions for this user: close the oldest ones
+        if (own.size() > MAX_SESSIONS_PER_USER) {
+            List<Session> open = new ArrayList<>();
+            for (String id : own) {
+                Session other = sessions.get(id);
+                if (other != null) {
+                    open.add(other);
+                }
+            }
+            open.sort(Comparator.comparingLong(Session::createdAt));
+            for (int i = 0; i < open.size() - MAX_SESSIONS_PER_USER; i++) {
+                remove(open.get(i).id());
+            }
+        }
+        return token;
+    }
+
+    // Add a session opened on another instance (replication), as is
+    public void add(Session session) {
+        sessions.put(session.id(), session);
+        byUser.computeIfAbsent(session.userId(), id -> ConcurrentHashMap.newKeySet()).add(session.id());
+    }
+
+    // Also refreshes the idle timer of the session
+    @Override
+    public Integer resolve(String token) {
+        if (token == null) {
+            return null;
+        }
+        Session session = sessions.get(token);
+        if (session == null) {
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        if (isExpired(session, now)) {
+            remove(token);
+            return null;
+        }
+        session.touch(now);
+        return session.userId();
+    }
+
+    @Override
+    public void remove(String token) {
+        Session session = sessions.remove(token);
+        if (session == null) {
+            return;
+        }
+        Set<String> own = byUser.get(session.userId());
+        if (own != null) {
+            own.remove(token);
+        }
+        journal.append(new Mutation.SessionClosed(token));
+    }
+
+    // Uses the reverse index, without scanning the other sessions
+    @Override
+    public void removeAllForUser(Integer userId) {
+        Set<String> own = byUser.remove(userId);
+        if (own == null) {
+            return;
+        }
+        List<Mutation> closed = new ArrayList<>();
+        for (String token : own) {
+            if (sessions.remove(token) != null) {
+                closed.add(new Mutation.SessionClosed(token));
+            }
+        }
+        journal.appendAll(closed);
+    }
+
+    @Override
+    public int size() {
+        return sessions.size();
+    }
+
+    @Override
+    public void close() {
+        sweeper.shutdownNow();
+    }
+
+    // Random session token, url-safe for the cookie
+    static String newToken() {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        RANDOM.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    private boolean isExpired(Session session, long now) {
+        return now - session.lastAccess() > idleTtl || now - session.createdAt() > absoluteTtl;
+    }
+
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        List<Mutation> closed = new ArrayList<>();
+
+        for (Session session : sessions.values()) {
+            if (isExpired(session, now) && sessions.remove(session.id(), session)) {
+                Set<String> own = byUser.get(session.userId());
+                if (own != null) {
+                    own.remove(session.id());
+                }
+                closed.add(new Mutation.SessionClosed(session.id()));
+            }
+        }
+
+        // One durable write per sweep, a failure must not cancel the next sweeps
+        try {
+            journal.appendAll(closed);
+        } catch (RuntimeException e) {
+            LOG.error("Cannot journal expired sessions", e);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package ch.heigvd.auth;
+
+import ch.heigvd.persistence.SqlDatabase;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Sessions in the 'sessions' table, with the same expiry rules as the InMemorySessionStore.
+// Every authenticated request resolves its session: the idle timer is only written back once it is
+// 'touchEvery' old, so most requests cost a single primary key lookup and no write.
+public class JdbcSessionStore implements SessionStore {
+    private static final Logger LOG = LoggerFactory.getLogger(JdbcSessionStore.class);
+
+    private final SqlDatabase database;
+    private final long idleTtl;
+    private final long absoluteTtl;
+    private final long touchEvery;
+    private final ScheduledExecutorService sweeper;
+
+    public JdbcSessionStore(SqlDatabase database, Duration idleTtl, Duration absoluteTtl) {
+        this.database = database;
+        this.idleTtl = idleTtl.toMillis();
+        this.absoluteTtl = absoluteTtl.toMillis();
+        // A session may end up to this much before its exact idle deadline
+        this.touchEvery = Math.min(60_000, this.idleTtl / 10);
+
+        long period = Math.max(1_000, Math.min(this.idleTtl, 60_000));
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "session-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.sweeper.scheduleAtFixedRate(this::sweep, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String create(Integer userId) {
+        String token = InMemorySessionStore.newToken();
+        long now = System.currentTimeMillis();
+
+        database.transaction(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "INSERT INTO sessions (session_id, user_id, created_at, last_access) VALUES (?, ?, ?, ?)")) {
+                statement.setString(1, token);
+                statement.setInt(2, userId);
+                statement.setLong(3, now);
+                statement.setLong(4, now);
+                statement.executeUpdate();
+            }
+            // Too many open sessions for this user: close the oldest ones
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "DELETE FROM sessions WHERE user_id = ? AND session_id NOT IN "
+                            + "(SELECT session_id FROM sessions WHERE user_id = ? ORDER BY created_at DESC LIMIT ?)")) {
+                statement.setInt(1, userId);
+                statement.setInt(2, userId);
+                statement.setInt(3, InMemorySessionStore.MAX_SESSIONS_PER_USER);
+                statement.executeUpdate();
+            }
+            return null;
+        });
+        return token;
+    }
+
+    // Also refreshes the idle timer of the session, coarsely
+    @Override
+    public Integer resolve(String token) {
+        if (token == null) {
+            return null;
+        }
+        return database.query(connection -> {
+            Integer userId;
+            long createdAt;
+            long lastAccess;
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT user_id, created_at, last_access FROM sessions WHERE session_id = ?")) {
+                statement.setString(1, token);
+                try (ResultSet rows = statement.executeQuery()) {
+                    if (!rows.next()) {
+                        return null;
+                    }
+                    userId = rows.getInt(1);
+                    createdAt = rows.getLong(2);
+                    lastAccess = rows.getLong(3);
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            // Expired: deleted on this connection, the pool may have no other one to give
+            if (now - lastAccess > idleTtl || now - createdAt > absoluteTtl) {
+                delete(connection, token);
+                return null;
+            }
+            if (now - lastAccess >= touchEvery) {
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "UPDATE sessions SET last_access = ? WHERE session_id = ?")) {
+                    statement.setLong(1, now);
+                    statement.setString(2, token);
+                    statement.executeUpdate();
+                }
+            }
+            return userId;
+        });
+    }
+
+    @Override
+    public void remove(String token) {
+        database.query(connection -> delete(connection, token));
+    }
+
+    @Override
+    public void removeAllForUser(Integer userId) {
+        database.query(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement("DELETE FROM sessions WHERE user_id = ?")) {
+                statement.setInt(1, userId);
+                return statement.executeUpdate();
+            }
+        });
+    }
+
+    @Override
+    public int size() {
+        return database.query(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement("SELECT COUNT(*) FROM sessions");
+                 ResultSet rows = statement.executeQuery()) {
+                rows.next();
+                return rows.getInt(1);
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        sweeper.shutdownNow();
+    }
+
+    private static int delete(Connection connection, String token) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("DELETE FROM sessions WHERE session_id = ?")) {
+            statement.setString(1, token);
+            return statement.executeUpdate();
+        }
+    }
+
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        // A failure must not cancel the next sweeps
+        try {
+            database.query(connection -> {
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "DELETE FROM sessions WHERE last_access < ? OR created_at < ?")) {
+                    statement.setLong(1, now - idleTtl);
+                    statement.setLong(2, now - absoluteTtl);
+                    return statement.executeUpdate();
+                }
+            });
+        } catch (RuntimeException e) {
+            LOG.error("Cannot delete expired sessions", e);
+        }
+    }
+}
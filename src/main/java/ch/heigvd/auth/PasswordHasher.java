@@ -0,0 +1,122 @@
+package ch.heigvd.auth;
+
+import io.javalin.http.ServiceUnavailableResponse;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+// Salted PBKDF2 password hashes: "pbkdf2-sha256$<iterations>$<salt>$<hash>" (base64, no padding).
+// Hashing is deliberately slow, so it runs on a small dedicated pool with a bounded queue:
+// a burst of logins waits there (or gets a 503) instead of occupying the threads serving the other routes.
+public class PasswordHasher implements AutoCloseable {
+    public static final String PREFIX = "pbkdf2-sha256";
+    public static final int DEFAULT_ITERATIONS = 600_000; // OWASP recommendation for PBKDF2-HMAC-SHA256
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final Base64.Encoder ENCODER = Base64.getEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getDecoder();
+
+    private final int iterations;
+    private final ThreadPoolExecutor pool;
+
+    public PasswordHasher(int iterations, int threads, int queueSize) {
+        this.iterations = iterations;
+
+        AtomicInteger count = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                r -> {
+                    Thread thread = new Thread(r, "password-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    // Hash on the pool and wait for the result, 503 when the pool is saturated
+    public String hash(String password) {
+        try {
+            return hashAsync(password).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    public CompletableFuture<String> hashAsync(String password) {
+        return submit(() -> hashNow(password, iterations));
+    }
+
+    // Check a password against a stored value, either a hash or a legacy plaintext password
+    public CompletableFuture<Boolean> verifyAsync(String password, String stored) {
+        return submit(() -> verifyNow(password, stored));
+    }
+
+    // Stored with an older format or cost: to hash again after a successful login
+    public boolean needsRehash(String stored) {
+        String[] parts = stored.split("\\$");
+        return parts.length != 4 || !parts[0].equals(PREFIX) || Integer.parseInt(parts[1]) != iterations;
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    private <T> CompletableFuture<T> submit(Supplier<T> task) {
+        try {
+            return CompletableFuture.supplyAsync(task, pool);
+        } catch (RejectedExecutionException e) {
+            throw new ServiceUnavailableResponse("Server busy, retry later");
+        }
+    }
+
+    private static String hashNow(String password, int iterations) {
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        byte[] hash = pbkdf2(password, salt, iterations);
+        return PREFIX + "$" + iterations + "$" + ENCODER.encodeToString(salt) + "$" + ENCODER.encodeToString(hash);
+    }
+
+    private static boolean verifyNow(String password, String stored) {
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4 || !parts[0].equals(PREFIX)) {
+            // Legacy plaintext password, still compared in constant time
+            return MessageDigest.isEqual(
+                    password.getBytes(StandardCharsets.UTF_8), stored.getBytes(StandardCharsets.UTF_8));
+        }
+        byte[] salt = DECODER.decode(parts[2]);
+        byte[] expected = DECODER.decode(parts[3]);
+        return MessageDigest.isEqual(pbkdf2(password, salt, Integer.parseInt(parts[1])), expected);
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot hash with " + ALGORITHM, e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
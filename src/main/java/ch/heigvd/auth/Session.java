@@ -0,0 +1,36 @@
+package ch.heigvd.auth;
+
+// A logged-in session, identified by the token stored in the 'session_id' cookie
+public final class Session {
+    private final String id;
+    private final Integer userId;
+    private final long createdAt; // epoch millis
+    private volatile long lastAccess; // epoch millis, refreshed on every request
+
+    public Session(String id, Integer userId, long createdAt) {
+        this.id = id;
+        this.userId = userId;
+        this.createdAt = createdAt;
+        this.lastAccess = createdAt;
+    }
+
+    public String id() {
+        return id;
+    }
+
+    public Integer userId() {
+        return userId;
+    }
+
+    public long createdAt() {
+        return createdAt;
+    }
+
+    public long lastAccess() {
+        return lastAccess;
+    }
+
+    void touch(long now) {
+        lastAccess = now;
+    }
+}
@@ -0,0 +1,58 @@
+package ch.heigvd.auth;
+
+import io.javalin.http.Context;
+import io.javalin.http.UnauthorizedResponse;
+import io.javalin.security.RouteRole;
+
+// Single session check for every protected route, registered once in Main with beforeMatched.
+// The cookie is resolved once per request, handlers then read the userId from the context.
+public class SessionFilter {
+    public static final String COOKIE = "session_id";
+
+    private static final String USER_ID = "userId";
+    private static final String SESSION_ID = "sessionId";
+
+    // Role given to the routes that require a logged-in user
+    public enum Access implements RouteRole {
+        AUTHENTICATED
+    }
+
+    private final SessionStore sessions;
+
+    public SessionFilter(SessionStore sessions) {
+        this.sessions = sessions;
+    }
+
+    public void handle(Context ctx) {
+        if (!ctx.routeRoles().contains(Access.AUTHENTICATED)) {
+            return;
+        }
+
+        // ------------------------------------------------ COOKIE VALIDATION ------------------------------------------
+        String session = ctx.cookie(COOKIE);
+        Integer userId = sessions.resolve(session);
+        if (userId == null) {
+            throw new UnauthorizedResponse("Invalid or missing cookie");
+        }
+
+        ctx.attribute(SESSION_ID, session);
+        ctx.attribute(USER_ID, userId);
+    }
+
+    // Logged-in user of the request, only set on AUTHENTICATED routes
+    public static Integer userId(Context ctx) {
+        Integer userId = ctx.attribute(USER_ID);
+        if (userId == null) {
+            throw new UnauthorizedResponse("Invalid session");
+        }
+        return userId;
+    }
+
+    public static String sessionId(Context ctx) {
+        String session = ctx.attribute(SESSION_ID);
+        if (session == null) {
+            throw new UnauthorizedResponse("Invalid session");
+        }
+        return session;
+    }
+}
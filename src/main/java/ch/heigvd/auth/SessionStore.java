@@ -0,0 +1,28 @@
+package ch.heigvd.auth;
+
+// Sessions of the logged-in users, the token is the value of the 'session_id' cookie
+public interface SessionStore extends AutoCloseable {
+
+    // Open a session for the user and return its token
+    String create(Integer userId);
+
+    // Return the userId of a live session, null when unknown, expired or closed
+    Integer resolve(String token);
+
+    default boolean isValid(String token) {
+        return resolve(token) != null;
+    }
+
+    // Close a session (logout)
+    void remove(String token);
+
+    // Close every session of a user (account deleted)
+    void removeAllForUser(Integer userId);
+
+    // Number of sessions (or revocations) tracked by this instance
+    int size();
+
+    @Override
+    default void close() {
+    }
+}
@@ -0,0 +1,166 @@
+package ch.heigvd.auth;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Stateless sessions: the token carries the userId and its expiry, signed with HMAC-SHA256.
+// Any instance sharing the secret validates it without a shared store, so no sticky sessions are needed.
+// Token: base64url(userId int, issuedAt long, expiresAt long, nonce 8 bytes) "." base64url(signature)
+//
+// Closed sessions are kept in a revocation list until they expire. The list is local to the instance
+// and not persisted: a logout is only enforced by the instance that handled it, the others (or this one
+// after a restart) accept the token until its expiry, so keep the absolute TTL short in this mode.
+// For the same reason this store is refused with replication, which keeps the sessions consistent itself.
+// There is no idle timeout either, the token is never refreshed.
+public class SignedSessionStore implements SessionStore {
+    public static final String ALGORITHM = "HmacSHA256";
+    public static final int MIN_SECRET_BYTES = 32;
+
+    private static final int PAYLOAD_BYTES = 4 + 8 + 8 + 8;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final Mac prototype;
+    private final long absoluteTtl;
+
+    // Revoked token -> its expiry (epoch millis), forgotten once expired
+    private final ConcurrentMap<String, Long> revoked = new ConcurrentHashMap<>();
+
+    // Deleted user -> deletion time, every token issued before is rejected
+    private final ConcurrentMap<Integer, Long> revokedUsers = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService sweeper;
+
+    public SignedSessionStore(byte[] secret, Duration absoluteTtl) {
+        if (secret.length < MIN_SECRET_BYTES) {
+            throw new IllegalArgumentException("The session secret must be at least " + MIN_SECRET_BYTES + " bytes");
+        }
+        try {
+            this.prototype = Mac.getInstance(ALGORITHM);
+            this.prototype.init(new SecretKeySpec(secret, ALGORITHM));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot initialize " + ALGORITHM, e);
+        }
+        this.absoluteTtl = absoluteTtl.toMillis();
+
+        long period = Math.max(1_000, Math.min(this.absoluteTtl, 60_000));
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "session-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.sweeper.scheduleAtFixedRate(this::sweep, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String create(Integer userId) {
+        long now = System.currentTimeMillis();
+        byte[] nonce = new byte[8];
+        RANDOM.nextBytes(nonce);
+
+        byte[] payload = ByteBuffer.allocate(PAYLOAD_BYTES)
+                .putInt(userId)
+                .putLong(now)
+                .putLong(now + absoluteTtl)
+                .put(nonce)
+                .array();
+        return ENCODER.encodeToString(payload) + "." + ENCODER.encodeToString(sign(payload));
+    }
+
+    @Override
+    public Integer resolve(String token) {
+        if (token == null) {
+            return null;
+        }
+        int dot = token.indexOf('.');
+        if (dot < 0) {
+            return null;
+        }
+
+        byte[] payload;
+        byte[] signature;
+        try {
+            payload = DECODER.decode(token.substring(0, dot));
+            signature = DECODER.decode(token.substring(dot + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        // Constant-time comparison, the signature must not leak byte by byte
+        if (payload.length != PAYLOAD_BYTES || !MessageDigest.isEqual(sign(payload), signature)) {
+            return null;
+        }
+        // The decoder ignores the unused bits of the last character: only the canonical
+        // spelling is accepted, otherwise a revoked token could come back under another one
+        if (!token.equals(ENCODER.encodeToString(payload) + "." + ENCODER.encodeToString(signature))) {
+            return null;
+        }
+
+        ByteBuffer fields = ByteBuffer.wrap(payload);
+        int userId = fields.getInt();
+        long issuedAt = fields.getLong();
+        long expiresAt = fields.getLong();
+
+        if (System.currentTimeMillis() > expiresAt || revoked.containsKey(token)) {
+            return null;
+        }
+        Long deletedAt = revokedUsers.get(userId);
+        if (deletedAt != null && issuedAt <= deletedAt) {
+            return null;
+        }
+        return userId;
+    }
+
+    @Override
+    public void remove(String token) {
+        if (resolve(token) == null) {
+            return;
+        }
+        long expiresAt = ByteBuffer.wrap(DECODER.decode(token.substring(0, token.indexOf('.')))).getLong(4 + 8);
+        revoked.put(token, expiresAt);
+    }
+
+    @Override
+    public void removeAllForUser(Integer userId) {
+        revokedUsers.put(userId, System.currentTimeMillis());
+    }
+
+    @Override
+    public int size() {
+        return revoked.size() + revokedUsers.size();
+    }
+
+    @Override
+    public void close() {
+        sweeper.shutdownNow();
+    }
+
+    // Mac is not thread-safe: every signature works on a copy of the initialized prototype
+    private byte[] sign(byte[] payload) {
+        try {
+            Mac mac = (Mac) prototype.clone();
+            return mac.doFinal(payload);
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        revoked.values().removeIf(expiresAt -> expiresAt < now);
+        // Tokens issued before a deletion have all expired after the absolute TTL
+        revokedUsers.values().removeIf(deletedAt -> deletedAt + absoluteTtl < now);
+    }
+}
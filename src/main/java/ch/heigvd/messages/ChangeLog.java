@@ -0,0 +1,121 @@
+package ch.heigvd.messages;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Versioned log of message mutations, used by clients to fetch only what changed since their last sync.
+// Only the latest change of each message is kept, deletions are kept as tombstones, and only the MAX_CHANGES
+// latest changes: the log does not grow with the number of messages stored.
+// Entries only hold the message ID: the content is read from the store when the change is served.
+class ChangeLog {
+    static final int MAX_CHANGES = 100_000;
+
+    // An upsert of the message, or a tombstone
+    record Change(long version, Integer msgId, boolean isDeletion) {}
+
+    private final ConcurrentNavigableMap<Long, Change> changes = new ConcurrentSkipListMap<>();
+
+    // Guarded by 'lock' (a ReentrantLock does not pin the virtual threads of the writers)
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<Integer, Long> latest = new HashMap<>();
+    private long next;
+    private int size;
+
+    // Every change up to this version is visible in 'changes'
+    private volatile long version;
+
+    // Versions up to this one may have lost changes, older clients must resync.
+    // Starts at the first version of the run: the versions of a previous run are all older
+    private volatile long horizon;
+
+    // Versions of this run are above 'first' (see MessageClock.firstVersion)
+    ChangeLog(long first) {
+        this.next = first + 1;
+        this.version = first;
+        this.horizon = first;
+    }
+
+    long recordUpsert(Integer msgId) {
+        return record(msgId, false);
+    }
+
+    long recordDeletion(Integer msgId) {
+        return record(msgId, true);
+    }
+
+    // A batch of changes made visible at once: readers see either none of them or all of them, and the
+    // version moves once (one invalidation of the feed validators). Returns the version of the last change.
+    long recordUpserts(List<Integer> msgIds) {
+        return recordAll(msgIds, false);
+    }
+
+    long recordDeletions(List<Integer> msgIds) {
+        return recordAll(msgIds, true);
+    }
+
+    private long recordAll(List<Integer> msgIds, boolean isDeletion) {
+        lock.lock();
+        try {
+            for (Integer msgId : msgIds) {
+                add(msgId, isDeletion);
+            }
+            version = next - 1;
+            return version;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Mutations are serialized here (a few map operations) so that readers never see a gap below 'version'
+    private long record(Integer msgId, boolean isDeletion) {
+        lock.lock();
+        try {
+            long v = add(msgId, isDeletion);
+            version = v;
+            return v;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Guarded by 'lock'
+    private long add(Integer msgId, boolean isDeletion) {
+        long v = next++;
+        Change change = new Change(v, msgId, isDeletion);
+        changes.put(v, change);
+
+        Long previous = latest.put(msgId, v);
+        if (previous != null) {
+            changes.remove(previous);
+        } else {
+            size++;
+        }
+
+        // Drop the oldest changes, the clients that have not seen them must resync
+        while (size > MAX_CHANGES) {
+            Change oldest = changes.pollFirstEntry().getValue();
+            latest.remove(oldest.msgId(), oldest.version());
+            horizon = oldest.version();
+            size--;
+        }
+        return v;
+    }
+
+    long version() {
+        return version;
+    }
+
+    long horizon() {
+        return horizon;
+    }
+
+    // Changes with a version in (since, upTo], oldest first
+    Collection<Change> between(long since, long upTo) {
+        return changes.subMap(since, false, upTo, true).values();
+    }
+}
@@ -0,0 +1,63 @@
+package ch.heigvd.messages;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
+
+// Serialized first page of the unfiltered feed, kept for the store version it was built at.
+// Pollers share it instead of each scanning and serializing the messages: when the version moves,
+// one request renders the new page while the others wait for it (single flight), then all reuse it.
+class FeedCache {
+
+    // The JSON body, and its gzip encoding when enabled
+    record Rendered(long version, byte[] body, byte[] gzipped, String nextCursor) {
+
+        static Rendered of(byte[] body, String nextCursor, boolean gzip) {
+            return new Rendered(0, body, gzip ? gzip(body) : null, nextCursor);
+        }
+
+        private Rendered at(long version) {
+            return new Rendered(version, body, gzipped, nextCursor);
+        }
+    }
+
+    private volatile Rendered current;
+    // A lock rather than synchronized: waiting virtual threads must not pin their carrier
+    private final ReentrantLock rendering = new ReentrantLock();
+
+    // The rendering at 'version' or later, built with 'render' when missing
+    Rendered get(long version, Supplier<Rendered> render) {
+        Rendered cached = current;
+        if (cached != null && cached.version() >= version) {
+            return cached;
+        }
+
+        rendering.lock();
+        try {
+            // Another request may have rendered it while this one was waiting
+            cached = current;
+            if (cached != null && cached.version() >= version) {
+                return cached;
+            }
+            // Changes made during the rendering may be in it: it is at least at 'version'
+            Rendered rendered = render.get().at(version);
+            current = rendered;
+            return rendered;
+        } finally {
+            rendering.unlock();
+        }
+    }
+
+    private static byte[] gzip(byte[] body) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(body);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+}
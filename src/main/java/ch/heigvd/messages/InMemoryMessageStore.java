@@ -0,0 +1,256 @@
+package ch.heigvd.messages;
+
+import ch.heigvd.persistence.Journal;
+import ch.heigvd.persistence.Mutation;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+// Messages kept in a map of this JVM (and its journal), with the timelines and the inverted index beside it.
+// The mutations of a message are serialized on its lock stripe: the map, the journal, the indexes and the
+// listener see them in the same order (an edit racing with a delete can neither journal nor re-index the
+// removed message).
+public class InMemoryMessageStore implements MessageStore {
+    private final ConcurrentMap<Integer, Message> messages;
+    private final Journal journal;
+    private final MessageIndex index = new MessageIndex();
+    private final SearchIndex search = new SearchIndex();
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final MessageLocks locks = new MessageLocks();
+    private volatile Listener listener = Listener.NONE;
+
+    public InMemoryMessageStore(ConcurrentMap<Integer, Message> messages, Journal journal) {
+        this.messages = messages;
+        this.journal = journal;
+
+        // Index the messages already present (recovered from disk, welcome message), in parallel:
+        // all the indexes are concurrent structures and a cold start may bring millions of messages
+        messages.values().parallelStream().forEach(message -> {
+            index.add(message);
+            search.add(message);
+            nextId.accumulateAndGet(message.msgId() + 1, Math::max);
+        });
+    }
+
+    @Override
+    public void listen(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public Integer nextId() {
+        return nextId.getAndIncrement();
+    }
+
+    @Override
+    public Integer nextIds(int count) {
+        return nextId.getAndAdd(count);
+    }
+
+    @Override
+    public Message get(Integer msgId) {
+        return messages.get(msgId);
+    }
+
+    @Override
+    public boolean insert(Message message) {
+        ReentrantLock lock = locks.of(message.msgId());
+        lock.lock();
+        try {
+            if (messages.putIfAbsent(message.msgId(), message) != null) {
+                return false;
+            }
+            nextId.accumulateAndGet(message.msgId() + 1, Math::max);
+            journal.append(new Mutation.MessageSaved(message));
+            index.add(message);
+            search.add(message);
+            listener.inserted(message);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<Message> insertAll(List<Message> batch) {
+        locks.lockAll();
+        try {
+            return insertAllLocked(batch);
+        } finally {
+            locks.unlockAll();
+        }
+    }
+
+    private List<Message> insertAllLocked(List<Message> batch) {
+        List<Message> inserted = new ArrayList<>(batch.size());
+        List<Mutation> saved = new ArrayList<>(batch.size());
+        for (Message message : batch) {
+            if (messages.putIfAbsent(message.msgId(), message) == null) {
+                nextId.accumulateAndGet(message.msgId() + 1, Math::max);
+                inserted.add(message);
+                saved.add(new Mutation.MessageSaved(message));
+            }
+        }
+
+        // A single durable write for all of them, then the indexes
+        journal.appendAll(saved);
+        for (Message message : inserted) {
+            index.add(message);
+            search.add(message);
+        }
+        if (!inserted.isEmpty()) {
+            listener.insertedAll(inserted);
+        }
+        return inserted;
+    }
+
+    @Override
+    public Message replace(Message message) {
+        ReentrantLock lock = locks.of(message.msgId());
+        lock.lock();
+        try {
+            Message previous = messages.replace(message.msgId(), message);
+            if (previous != null) {
+                journal.append(new Mutation.MessageSaved(message));
+                index.replace(message);
+                search.replace(previous, message);
+                listener.replaced(message);
+            }
+            return previous;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Message remove(Integer msgId) {
+        ReentrantLock lock = locks.of(msgId);
+        lock.lock();
+        try {
+            Message removed = messages.remove(msgId);
+            if (removed != null) {
+                journal.append(new Mutation.MessageDeleted(msgId));
+                index.remove(removed);
+                search.remove(removed);
+                listener.removed(removed);
+            }
+            return removed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<Message> removeAll(List<Integer> msgIds) {
+        locks.lockAll();
+        try {
+            return removeAllLocked(msgIds);
+        } finally {
+            locks.unlockAll();
+        }
+    }
+
+    private List<Message> removeAllLocked(List<Integer> msgIds) {
+        List<Message> removed = new ArrayList<>(msgIds.size());
+        List<Mutation> deletions = new ArrayList<>(msgIds.size());
+        for (Integer msgId : msgIds) {
+            Message message = messages.remove(msgId);
+            if (message != null) {
+                removed.add(message);
+                deletions.add(new Mutation.MessageDeleted(msgId));
+            }
+        }
+
+        journal.appendAll(deletions);
+        for (Message message : removed) {
+            index.remove(message);
+            search.remove(message);
+        }
+        if (!removed.isEmpty()) {
+            listener.removedAll(removed);
+        }
+        return removed;
+    }
+
+    @Override
+    public List<Message> removeAllOfUser(Integer userId) {
+        List<Message> removed = new ArrayList<>();
+        List<Mutation> deletions = new ArrayList<>();
+
+        locks.lockAll();
+        try {
+            // Detach the user's messages from the indexes, then delete them
+            for (Message message : index.removeUser(userId)) {
+                if (messages.remove(message.msgId()) != null) {
+                    search.remove(message);
+                    removed.add(message);
+                    deletions.add(new Mutation.MessageDeleted(message.msgId()));
+                }
+            }
+
+            // A single durable write for all of them
+            journal.appendAll(deletions);
+            for (Message message : removed) {
+                listener.removed(message);
+            }
+        } finally {
+            locks.unlockAll();
+        }
+        return removed;
+    }
+
+    @Override
+    public Iterator<Message> page(Integer userId, Instant since, MessageIndex.Key after, int limit) {
+        // Range scan on the timeline (of the author only when filtering), a view of the skip list
+        Collection<Message> range = userId != null
+                ? index.ofUser(userId, since, after)
+                : index.since(since, after);
+
+        Iterator<Message> messages = range.iterator();
+        return new Iterator<>() {
+            private int returned;
+
+            @Override
+            public boolean hasNext() {
+                return returned < limit && messages.hasNext();
+            }
+
+            @Override
+            public Message next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                returned++;
+                return messages.next();
+            }
+        };
+    }
+
+    @Override
+    public int countOfUser(Integer userId) {
+        return index.countOfUser(userId);
+    }
+
+    @Override
+    public List<SearchIndex.Hit> search(String query, int limit) {
+        return search.search(query, limit);
+    }
+
+    @Override
+    public void forEach(Consumer<Message> action) {
+        messages.values().forEach(action);
+    }
+
+    @Override
+    public int size() {
+        return messages.size();
+    }
+}
@@ -0,0 +1,582 @@
+package ch.heigvd.messages;
+
+import ch.heigvd.persistence.SqlDatabase;
+import ch.heigvd.persistence.StorageException;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Types;
+import java.time.Instant;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+// Messages in the 'messages' table, their terms in 'message_terms' (the inverted index of the SearchIndex,
+// as rows). The feed pages are range scans on the (user_id,) created_at, msg_id indexes, in timeline order.
+// The mutations of a message are serialized on its lock stripe, around the transaction and the notification of the
+// listener, which is told of a change once it is committed (its readers then find it in the table).
+public class JdbcMessageStore implements MessageStore {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    private static final String COLUMNS = "msg_id, user_id, created_at, edited_at, content";
+
+    // Resuming after a key: the first condition bounds the index range, the second skips the ties before it
+    private static final String RANGE = "created_at >= ? AND (created_at > ? OR msg_id > ?) ORDER BY created_at, msg_id LIMIT ?";
+
+    // Rows read by each query of a page iterator
+    private static final int PAGE_CHUNK = 256;
+
+    private final SqlDatabase database;
+    private final AtomicInteger nextId;
+
+    // Corpus statistics of the BM25 ranking, kept here rather than aggregated at each search
+    private final AtomicInteger documents = new AtomicInteger();
+    private final AtomicLong totalLength = new AtomicLong();
+
+    private final MessageLocks locks = new MessageLocks();
+    private volatile Listener listener = Listener.NONE;
+
+    public JdbcMessageStore(SqlDatabase database) {
+        this.database = database;
+        this.nextId = new AtomicInteger(database.query(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT MAX(msg_id), COUNT(*), SUM(terms) FROM messages");
+                 ResultSet rows = statement.executeQuery()) {
+                rows.next();
+                documents.set(rows.getInt(2));
+                totalLength.set(rows.getLong(3));
+                return rows.getInt(1) + 1;
+            }
+        }));
+    }
+
+    @Override
+    public void listen(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public Integer nextId() {
+        return nextId.getAndIncrement();
+    }
+
+    @Override
+    public Integer nextIds(int count) {
+        return nextId.getAndAdd(count);
+    }
+
+    @Override
+    public Message get(Integer msgId) {
+        return database.query(connection -> find(connection, msgId, false));
+    }
+
+    @Override
+    public boolean insert(Message message) {
+        ReentrantLock lock = locks.of(message.msgId());
+        lock.lock();
+        try {
+            boolean inserted = insertLocked(message);
+            if (inserted) {
+                listener.inserted(message);
+            }
+            return inserted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean insertLocked(Message message) {
+        Map<String, Integer> terms = SearchIndex.countTerms(message.content());
+        int length = length(terms);
+
+        boolean inserted = database.transaction(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "INSERT INTO messages (" + COLUMNS + ", terms) VALUES (?, ?, ?, ?, ?, ?)")) {
+                statement.setInt(1, message.msgId());
+                statement.setInt(2, message.userId());
+                statement.setLong(3, toNanos(message.createdAt()));
+                setNanos(statement, 4, message.editedAt());
+                statement.setString(5, message.content());
+                statement.setInt(6, length);
+                statement.executeUpdate();
+            } catch (SQLIntegrityConstraintViolationException e) {
+                return false;
+            }
+            insertTerms(connection, message.msgId(), terms, length);
+            return true;
+        });
+        if (inserted) {
+            nextId.accumulateAndGet(message.msgId() + 1, Math::max);
+            documents.incrementAndGet();
+            totalLength.addAndGet(length);
+        }
+        return inserted;
+    }
+
+    // One transaction with batched inserts. The IDs already used are looked up first, in the range of the
+    // batch (a block from nextIds): a racing insert of the same ID fails the whole batch instead
+    @Override
+    public List<Message> insertAll(List<Message> batch) {
+        if (batch.isEmpty()) {
+            return List.of();
+        }
+        locks.lockAll();
+        try {
+            List<Message> inserted = insertAllLocked(batch);
+            if (!inserted.isEmpty()) {
+                listener.insertedAll(inserted);
+            }
+            return inserted;
+        } finally {
+            locks.unlockAll();
+        }
+    }
+
+    private List<Message> insertAllLocked(List<Message> batch) {
+        List<Message> inserted = database.transaction(connection -> {
+            Set<Integer> used = new HashSet<>();
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT msg_id FROM messages WHERE msg_id BETWEEN ? AND ?")) {
+                statement.setInt(1, batch.stream().mapToInt(Message::msgId).min().getAsInt());
+                statement.setInt(2, batch.stream().mapToInt(Message::msgId).max().getAsInt());
+                try (ResultSet rows = statement.executeQuery()) {
+                    while (rows.next()) {
+                        used.add(rows.getInt(1));
+                    }
+                }
+            }
+
+            List<Message> stored = new ArrayList<>(batch.size());
+            try (PreparedStatement statement = connection.prepareStatement(
+                         "INSERT INTO messages (" + COLUMNS + ", terms) VALUES (?, ?, ?, ?, ?, ?)");
+                 PreparedStatement postings = connection.prepareStatement(
+                         "INSERT INTO message_terms (term, msg_id, posting) VALUES (?, ?, ?)")) {
+                for (Message message : batch) {
+                    if (!used.add(message.msgId())) {
+                        continue;
+                    }
+                    Map<String, Integer> terms = SearchIndex.countTerms(message.content());
+                    int length = length(terms);
+                    statement.setInt(1, message.msgId());
+                    statement.setInt(2, message.userId());
+                    statement.setLong(3, toNanos(message.createdAt()));
+                    setNanos(statement, 4, message.editedAt());
+                    statement.setString(5, message.content());
+                    statement.setInt(6, length);
+                    statement.addBatch();
+                    for (Map.Entry<String, Integer> term : terms.entrySet()) {
+                        postings.setString(1, term.getKey());
+                        postings.setInt(2, message.msgId());
+                        postings.setInt(3, SearchIndex.posting(term.getValue(), length));
+                        postings.addBatch();
+                    }
+                    stored.add(message);
+                }
+                statement.executeBatch();
+                postings.executeBatch();
+            }
+            return stored;
+        });
+        for (Message message : inserted) {
+            nextId.accumulateAndGet(message.msgId() + 1, Math::max);
+            documents.incrementAndGet();
+            totalLength.addAndGet(length(SearchIndex.countTerms(message.content())));
+        }
+        return inserted;
+    }
+
+    @Override
+    public Message replace(Message message) {
+        ReentrantLock lock = locks.of(message.msgId());
+        lock.lock();
+        try {
+            Message previous = replaceLocked(message);
+            if (previous != null) {
+                listener.replaced(message);
+            }
+            return previous;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Message replaceLocked(Message message) {
+        Map<String, Integer> terms = SearchIndex.countTerms(message.content());
+        int length = length(terms);
+
+        Message previous = database.transaction(connection -> {
+            Message current = find(connection, message.msgId(), true);
+            if (current == null) {
+                return null;
+            }
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "UPDATE messages SET edited_at = ?, content = ?, terms = ? WHERE msg_id = ?")) {
+                setNanos(statement, 1, message.editedAt());
+                statement.setString(2, message.content());
+                statement.setInt(3, length);
+                statement.setInt(4, message.msgId());
+                statement.executeUpdate();
+            }
+            deleteTerms(connection, message.msgId());
+            insertTerms(connection, message.msgId(), terms, length);
+            return current;
+        });
+        if (previous != null) {
+            totalLength.addAndGet(length - length(SearchIndex.countTerms(previous.content())));
+        }
+        return previous;
+    }
+
+    @Override
+    public Message remove(Integer msgId) {
+        ReentrantLock lock = locks.of(msgId);
+        lock.lock();
+        try {
+            Message removed = removeLocked(msgId);
+            if (removed != null) {
+                listener.removed(removed);
+            }
+            return removed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Message removeLocked(Integer msgId) {
+        Message removed = database.transaction(connection -> {
+            Message current = find(connection, msgId, true);
+            if (current != null) {
+                deleteTerms(connection, msgId);
+                try (PreparedStatement statement = connection.prepareStatement("DELETE FROM messages WHERE msg_id = ?")) {
+                    statement.setInt(1, msgId);
+                    statement.executeUpdate();
+                }
+            }
+            return current;
+        });
+        if (removed != null) {
+            documents.decrementAndGet();
+            totalLength.addAndGet(-length(SearchIndex.countTerms(removed.content())));
+        }
+        return removed;
+    }
+
+    @Override
+    public List<Message> removeAll(List<Integer> msgIds) {
+        if (msgIds.isEmpty()) {
+            return List.of();
+        }
+        locks.lockAll();
+        try {
+            List<Message> removed = removeAllLocked(msgIds);
+            if (!removed.isEmpty()) {
+                listener.removedAll(removed);
+            }
+            return removed;
+        } finally {
+            locks.unlockAll();
+        }
+    }
+
+    private List<Message> removeAllLocked(List<Integer> msgIds) {
+        List<Message> removed = database.transaction(connection -> {
+            Array ids = connection.createArrayOf("INTEGER", msgIds.toArray());
+            List<Message> found = new ArrayList<>();
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT " + COLUMNS + " FROM messages WHERE msg_id = ANY(?) FOR UPDATE")) {
+                statement.setArray(1, ids);
+                try (ResultSet rows = statement.executeQuery()) {
+                    while (rows.next()) {
+                        found.add(toMessage(rows));
+                    }
+                }
+            }
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "DELETE FROM message_terms WHERE msg_id = ANY(?)")) {
+                statement.setArray(1, ids);
+                statement.executeUpdate();
+            }
+            try (PreparedStatement statement = connection.prepareStatement("DELETE FROM messages WHERE msg_id = ANY(?)")) {
+                statement.setArray(1, ids);
+                statement.executeUpdate();
+            }
+            return found;
+        });
+        for (Message message : removed) {
+            documents.decrementAndGet();
+            totalLength.addAndGet(-length(SearchIndex.countTerms(message.content())));
+        }
+        return removed;
+    }
+
+    @Override
+    public List<Message> removeAllOfUser(Integer userId) {
+        locks.lockAll();
+        try {
+            List<Message> removed = removeAllOfUserLocked(userId);
+            for (Message message : removed) {
+                listener.removed(message);
+            }
+            return removed;
+        } finally {
+            locks.unlockAll();
+        }
+    }
+
+    private List<Message> removeAllOfUserLocked(Integer userId) {
+        List<Message> removed = database.transaction(connection -> {
+            List<Message> own = new ArrayList<>();
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT " + COLUMNS + " FROM messages WHERE user_id = ? FOR UPDATE")) {
+                statement.setInt(1, userId);
+                try (ResultSet rows = statement.executeQuery()) {
+                    while (rows.next()) {
+                        own.add(toMessage(rows));
+                    }
+                }
+            }
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "DELETE FROM message_terms WHERE msg_id IN (SELECT msg_id FROM messages WHERE user_id = ?)")) {
+                statement.setInt(1, userId);
+                statement.executeUpdate();
+            }
+            try (PreparedStatement statement = connection.prepareStatement("DELETE FROM messages WHERE user_id = ?")) {
+                statement.setInt(1, userId);
+                statement.executeUpdate();
+            }
+            return own;
+        });
+        for (Message message : removed) {
+            documents.decrementAndGet();
+            totalLength.addAndGet(-length(SearchIndex.countTerms(message.content())));
+        }
+        return removed;
+    }
+
+    // Read PAGE_CHUNK rows at a time, each chunk resuming after the last row of the previous one on a connection
+    // of its own: the caller may use the database between two messages (e.g. for the usernames)
+    @Override
+    public Iterator<Message> page(Integer userId, Instant since, MessageIndex.Key after, int limit) {
+        return new Iterator<>() {
+            private MessageIndex.Key last = after;
+            private int remaining = limit;
+            private Iterator<Message> chunk = List.<Message>of().iterator();
+            private boolean exhausted;
+
+            @Override
+            public boolean hasNext() {
+                if (!chunk.hasNext() && !exhausted && remaining > 0) {
+                    int size = Math.min(PAGE_CHUNK, remaining);
+                    List<Message> rows = chunk(userId, since, last, size);
+                    exhausted = rows.size() < size;
+                    chunk = rows.iterator();
+                }
+                return chunk.hasNext();
+            }
+
+            @Override
+            public Message next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Message message = chunk.next();
+                last = MessageIndex.Key.of(message);
+                remaining--;
+                return message;
+            }
+        };
+    }
+
+    private List<Message> chunk(Integer userId, Instant since, MessageIndex.Key after, int limit) {
+        // Both bounds fold into the one range condition
+        long from = since != null ? toNanos(since) : Long.MIN_VALUE;
+        long afterCreated = Long.MIN_VALUE;
+        int afterId = Integer.MIN_VALUE;
+        if (after != null) {
+            afterCreated = toNanos(after.createdAt());
+            afterId = after.msgId();
+            from = Math.max(from, afterCreated);
+        }
+        long start = from;
+        long afterNanos = afterCreated;
+        int afterMsgId = afterId;
+
+        return database.query(connection -> {
+            String sql = userId != null
+                    ? "SELECT " + COLUMNS + " FROM messages WHERE user_id = ? AND " + RANGE
+                    : "SELECT " + COLUMNS + " FROM messages WHERE " + RANGE;
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                int i = 1;
+                if (userId != null) {
+                    statement.setInt(i++, userId);
+                }
+                statement.setLong(i++, start);
+                statement.setLong(i++, afterNanos);
+                statement.setInt(i++, afterMsgId);
+                statement.setInt(i, limit);
+
+                List<Message> page = new ArrayList<>(limit);
+                try (ResultSet rows = statement.executeQuery()) {
+                    while (rows.next()) {
+                        page.add(toMessage(rows));
+                    }
+                }
+                return page;
+            }
+        });
+    }
+
+    @Override
+    public int countOfUser(Integer userId) {
+        return database.query(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT COUNT(*) FROM messages WHERE user_id = ?")) {
+                statement.setInt(1, userId);
+                try (ResultSet rows = statement.executeQuery()) {
+                    rows.next();
+                    return rows.getInt(1);
+                }
+            }
+        });
+    }
+
+    // Same BM25 ranking as the in-memory index: the document frequencies are counted on the primary key,
+    // and the postings of a term are only read when the ranking uses it, up to MAX_SCAN rows
+    @Override
+    public List<SearchIndex.Hit> search(String query, int limit) {
+        return database.query(connection -> {
+            List<SearchIndex.Term> terms = new ArrayList<>();
+            try (PreparedStatement count = connection.prepareStatement(
+                    "SELECT COUNT(*) FROM message_terms WHERE term = ?")) {
+                for (String term : SearchIndex.countTerms(query).keySet()) {
+                    if (terms.size() == SearchIndex.MAX_QUERY_TERMS) {
+                        break;
+                    }
+                    count.setString(1, term);
+                    try (ResultSet rows = count.executeQuery()) {
+                        rows.next();
+                        int found = rows.getInt(1);
+                        if (found > 0) {
+                            terms.add(new SearchIndex.Term(found, () -> postings(connection, term)));
+                        }
+                    }
+                }
+            }
+            return SearchIndex.rank(terms, documents.get(), totalLength.get(), limit);
+        });
+    }
+
+    @Override
+    public void forEach(Consumer<Message> action) {
+        database.query(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement("SELECT " + COLUMNS + " FROM messages");
+                 ResultSet rows = statement.executeQuery()) {
+                while (rows.next()) {
+                    action.accept(toMessage(rows));
+                }
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public int size() {
+        return documents.get();
+    }
+
+    // ---- Rows ----
+
+    private static Message find(Connection connection, Integer msgId, boolean forUpdate) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT " + COLUMNS + " FROM messages WHERE msg_id = ?" + (forUpdate ? " FOR UPDATE" : ""))) {
+            statement.setInt(1, msgId);
+            try (ResultSet rows = statement.executeQuery()) {
+                return rows.next() ? toMessage(rows) : null;
+            }
+        }
+    }
+
+    private static void insertTerms(Connection connection, Integer msgId, Map<String, Integer> terms, int length)
+            throws SQLException {
+        if (terms.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement statement = connection.prepareStatement(
+                "INSERT INTO message_terms (term, msg_id, posting) VALUES (?, ?, ?)")) {
+            for (Map.Entry<String, Integer> term : terms.entrySet()) {
+                statement.setString(1, term.getKey());
+                statement.setInt(2, msgId);
+                statement.setInt(3, SearchIndex.posting(term.getValue(), length));
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    private static void deleteTerms(Connection connection, Integer msgId) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("DELETE FROM message_terms WHERE msg_id = ?")) {
+            statement.setInt(1, msgId);
+            statement.executeUpdate();
+        }
+    }
+
+    private static List<Map.Entry<Integer, Integer>> postings(Connection connection, String term) {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT msg_id, posting FROM message_terms WHERE term = ? LIMIT " + SearchIndex.MAX_SCAN)) {
+            statement.setString(1, term);
+            List<Map.Entry<Integer, Integer>> postings = new ArrayList<>();
+            try (ResultSet rows = statement.executeQuery()) {
+                while (rows.next()) {
+                    postings.add(new AbstractMap.SimpleImmutableEntry<>(rows.getInt(1), rows.getInt(2)));
+                }
+            }
+            return postings;
+        } catch (SQLException e) {
+            throw new StorageException("Cannot read the postings of " + term, e);
+        }
+    }
+
+    private static Message toMessage(ResultSet rows) throws SQLException {
+        long editedAt = rows.getLong("edited_at");
+        boolean edited = !rows.wasNull();
+        return new Message(
+                rows.getInt("user_id"),
+                rows.getInt("msg_id"),
+                toInstant(rows.getLong("created_at")),
+                edited ? toInstant(editedAt) : null,
+                rows.getString("content"));
+    }
+
+    private static int length(Map<String, Integer> terms) {
+        return terms.values().stream().mapToInt(Integer::intValue).sum();
+    }
+
+    // Instants as epoch nanoseconds, the resolution of the MessageClock
+    private static long toNanos(Instant instant) {
+        return instant.getEpochSecond() * NANOS_PER_SECOND + instant.getNano();
+    }
+
+    private static Instant toInstant(long nanos) {
+        return Instant.ofEpochSecond(Math.floorDiv(nanos, NANOS_PER_SECOND), Math.floorMod(nanos, NANOS_PER_SECOND));
+    }
+
+    private static void setNanos(PreparedStatement statement, int index, Instant instant) throws SQLException {
+        if (instant != null) {
+            statement.setLong(index, toNanos(instant));
+        } else {
+            statement.setNull(index, Types.BIGINT);
+        }
+    }
+}
@@ -1,8 +1,9 @@
 package ch.heigvd.messages;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
 import java.time.Instant;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 
 public record Message(
         Integer userId,
@@ -11,27 +12,38 @@ public record Message(
         Instant editedAt, // set when edited, can be null -> server side handling
         String content
 ) {
-    public Map<String, Object> toCreatedMap() {
-        Map<String, Object> m = new HashMap<>();
-        m.put("userId", userId);
-        m.put("msgId", msgId);
-        m.put("content", content);
-        return m;
+    // Response views, field order follows api/API.md
+    public record CreatedView(Integer userId, Integer msgId, String content) {}
+
+    public record EditedView(Integer msgId, String content) {}
+
+    public record MineView(Integer msgId, Instant createdAt, Instant editedAt, String content) {}
+
+    // Entries of GET /messages/changes: the message as it is now, or a tombstone
+    public record ChangedView(long version, String type, Integer msgId, Integer userId, String username,
+                              Instant createdAt, Instant editedAt, String content) {}
+
+    public record DeletedView(long version, String type, Integer msgId) {}
+
+    public record ChangesView(long version, boolean hasMore, List<Object> changes) {}
+
+    // Results of GET /messages/search, best match first
+    public record FoundView(Integer msgId, String username, Instant createdAt, Instant editedAt, String content,
+                            double score) {}
+
+    // Result of one item of a batch request: its status, and the message ID or the error
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public record BatchResultView(int status, Integer msgId, String error) {}
+
+    public CreatedView toCreatedView() {
+        return new CreatedView(userId, msgId, content);
     }
 
-    public Map<String, Object> toEditedMap() {
-        Map<String, Object> m = new HashMap<>();
-        m.put("msgId", msgId);
-        m.put("content", content);
-        return m;
+    public EditedView toEditedView() {
+        return new EditedView(msgId, content);
     }
 
-    public Map<String, Object> toMineMap() {
-        Map<String, Object> m = new HashMap<>();
-        m.put("msgId", msgId);
-        m.put("createdAt", createdAt.toString());
-        m.put("editedAt", editedAt != null ? editedAt.toString() : null);
-        m.put("content", content);
-        return m;
+    public MineView toMineView() {
+        return new MineView(msgId, createdAt, editedAt, content);
     }
 }
@@ -0,0 +1,71 @@
+package ch.heigvd.messages;
+
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Clock of one message store: strictly increasing timestamps for its mutations, kept as epoch nanoseconds
+// in a single AtomicLong (no Instant allocated inside the CAS loop), and the validators of the feed.
+class MessageClock {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    // 2024-01-01T00:00:00Z, origin of the change log versions
+    private static final long VERSIONS_ORIGIN = 1_704_067_200L * NANOS_PER_SECOND;
+
+    private final AtomicLong last;
+
+    // Identifies this run: versions restart at each start, their ETags must not match older ones
+    private final String epoch;
+    private final long started;
+
+    MessageClock() {
+        long now = now();
+        this.last = new AtomicLong(now);
+        this.epoch = Long.toString(now, 36);
+        this.started = now;
+    }
+
+    // Timestamp of a new mutation, after every previous one even if the wall clock goes back
+    Instant tick() {
+        long now = now();
+        return toInstant(last.accumulateAndGet(now, (previous, current) -> current > previous ? current : previous + 1));
+    }
+
+    // Where the change log of this run starts: its start in tenths of microseconds since 2024. A version kept by a
+    // client across a restart is below it (unless the previous run made more than 10 changes per microsecond),
+    // and the values stay exact as JSON numbers (below 2^53) for centuries
+    long firstVersion() {
+        return (started - VERSIONS_ORIGIN) / 100;
+    }
+
+    Instant lastModified() {
+        return toInstant(last.get());
+    }
+
+    // Strong validator of a response built from the store at this version
+    String etag(long version) {
+        return "\"" + epoch + "-" + version + "\"";
+    }
+
+    // True when the If-None-Match header lists the ETag (or is "*")
+    static boolean matches(String ifNoneMatch, String etag) {
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long now() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * NANOS_PER_SECOND + now.getNano();
+    }
+
+    private static Instant toInstant(long nanos) {
+        return Instant.ofEpochSecond(Math.floorDiv(nanos, NANOS_PER_SECOND), Math.floorMod(nanos, NANOS_PER_SECOND));
+    }
+}
@@ -0,0 +1,125 @@
+package ch.heigvd.messages;
+
+import ch.heigvd.utils.Json;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import io.javalin.http.sse.SseClient;
+
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BooleanSupplier;
+
+// Fan-out of message mutations to the clients connected on the SSE feed.
+// Every connection has its own bounded buffer drained by a virtual thread: a client that
+// does not keep up is disconnected instead of slowing down the writers or the other clients.
+class MessageEvents {
+    static final int BUFFER_SIZE = 256;
+
+    // Payloads, serialized once per event whatever the number of subscribers
+    record MessageEvent(Integer msgId, Integer userId, String username, Instant createdAt, Instant editedAt, String content) {}
+
+    record DeletedEvent(Integer msgId) {}
+
+    record ChangedEvent(int count) {}
+
+    // The version of the change is sent as the SSE event id
+    private record Event(String type, String data, String id) {}
+
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+
+    // Register a client, 'stillValid' is checked before each push (e.g. the session was not closed)
+    void subscribe(SseClient client, BooleanSupplier stillValid) {
+        Subscriber subscriber = new Subscriber(client, stillValid);
+        subscribers.add(subscriber);
+
+        client.keepAlive();
+        client.onClose(subscriber::stop);
+        subscriber.thread = Thread.ofVirtual().name("sse-subscriber").start(subscriber);
+    }
+
+    void created(MessageEvent event, long version) {
+        publish("created", event, version);
+    }
+
+    void updated(MessageEvent event, long version) {
+        publish("updated", event, version);
+    }
+
+    void deleted(Integer msgId, long version) {
+        publish("deleted", new DeletedEvent(msgId), version);
+    }
+
+    // A batch is announced by one event instead of one per message, which would overflow the buffers:
+    // clients fetch its changes from GET /messages/changes
+    void changed(int count, long version) {
+        publish("changed", new ChangedEvent(count), version);
+    }
+
+    int subscriberCount() {
+        return subscribers.size();
+    }
+
+    private void publish(String type, Object payload, long version) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+
+        Event event;
+        try {
+            event = new Event(type, Json.writerFor(payload.getClass()).writeValueAsString(payload), String.valueOf(version));
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        for (Subscriber subscriber : subscribers) {
+            // Buffer full: the client is too slow, drop it
+            if (!subscriber.queue.offer(event)) {
+                subscriber.stop();
+            }
+        }
+    }
+
+    private final class Subscriber implements Runnable {
+        private final SseClient client;
+        private final BooleanSupplier stillValid;
+        private final BlockingQueue<Event> queue = new ArrayBlockingQueue<>(BUFFER_SIZE);
+        private volatile Thread thread;
+
+        Subscriber(SseClient client, BooleanSupplier stillValid) {
+            this.client = client;
+            this.stillValid = stillValid;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!client.terminated()) {
+                    Event event = queue.take();
+                    if (!stillValid.getAsBoolean()) {
+                        break;
+                    }
+                    client.sendEvent(event.type(), event.data(), event.id());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                stop();
+            }
+        }
+
+        void stop() {
+            if (!subscribers.remove(this)) {
+                return;
+            }
+            client.close();
+            Thread current = thread;
+            if (current != null && current != Thread.currentThread()) {
+                current.interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package ch.heigvd.messages;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Secondary indexes over the messages map, maintained by the InMemoryMessageStore on every mutation
+class MessageIndex {
+    // Position of a message on the timeline: creation date first, msgId to break ties
+    record Key(Instant createdAt, Integer msgId) implements Comparable<Key> {
+        static Key of(Message message) {
+            return new Key(message.createdAt(), message.msgId());
+        }
+
+        // Textual form used inside pagination cursors: epochSecond:nano:msgId
+        String toPosition() {
+            return createdAt.getEpochSecond() + ":" + createdAt.getNano() + ":" + msgId;
+        }
+
+        static Key fromPosition(String position) {
+            String[] parts = position.split(":");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("Invalid position: " + position);
+            }
+            return new Key(
+                    Instant.ofEpochSecond(Long.parseLong(parts[0]), Long.parseLong(parts[1])),
+                    Integer.parseInt(parts[2]));
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            int cmp = createdAt.compareTo(other.createdAt);
+            return cmp != 0 ? cmp : Integer.compare(msgId, other.msgId);
+        }
+    }
+
+    // Chronologically ordered messages with a counter (size() of a skip list is O(n))
+    static class Timeline {
+        private final ConcurrentNavigableMap<Key, Message> entries = new ConcurrentSkipListMap<>();
+        private final AtomicInteger size = new AtomicInteger();
+
+        void put(Message message) {
+            if (entries.put(Key.of(message), message) == null) {
+                size.incrementAndGet();
+            }
+        }
+
+        // Only when the message is still there: a removed message is never put back
+        void replace(Message message) {
+            entries.replace(Key.of(message), message);
+        }
+
+        void remove(Message message) {
+            if (entries.remove(Key.of(message)) != null) {
+                size.decrementAndGet();
+            }
+        }
+
+        // Messages created at or after 'since' and strictly after 'after' (both optional), oldest first
+        Collection<Message> since(Instant since, Key after) {
+            Key from = since != null ? new Key(since, Integer.MIN_VALUE) : null;
+            if (after != null && (from == null || after.compareTo(from) >= 0)) {
+                return entries.tailMap(after, false).values();
+            }
+            if (from != null) {
+                return entries.tailMap(from, true).values();
+            }
+            return entries.values();
+        }
+
+        int size() {
+            return size.get();
+        }
+    }
+
+    private static final Timeline EMPTY = new Timeline();
+
+    // All messages in chronological order
+    private final Timeline timeline = new Timeline();
+
+    // Messages of each user in chronological order
+    private final ConcurrentMap<Integer, Timeline> byUser = new ConcurrentHashMap<>();
+
+    void add(Message message) {
+        timeline.put(message);
+        byUser.computeIfAbsent(message.userId(), id -> new Timeline()).put(message);
+    }
+
+    // createdAt never changes on edit, so the message keeps its position on the timelines
+    void replace(Message message) {
+        timeline.replace(message);
+        Timeline own = byUser.get(message.userId());
+        if (own != null) {
+            own.replace(message);
+        }
+    }
+
+    void remove(Message message) {
+        timeline.remove(message);
+        Timeline own = byUser.get(message.userId());
+        if (own != null) {
+            own.remove(message);
+        }
+    }
+
+    // Drop the per-user timeline once the user is gone, returns the messages it held
+    List<Message> removeUser(Integer userId) {
+        Timeline own = byUser.remove(userId);
+        if (own == null) {
+            return List.of();
+        }
+        List<Message> removed = List.copyOf(own.entries.values());
+        for (Message message : removed) {
+            timeline.remove(message);
+        }
+        return removed;
+    }
+
+    // Messages created at or after the given instant (all of them when null), oldest first,
+    // resuming strictly after the 'after' key when paginating.
+    // editedAt is always later than createdAt, so filtering on createdAt alone is enough.
+    Collection<Message> since(Instant since, Key after) {
+        return timeline.since(since, after);
+    }
+
+    // Same range as since(), on the timeline of one user only
+    Collection<Message> ofUser(Integer userId, Instant since, Key after) {
+        return byUser.getOrDefault(userId, EMPTY).since(since, after);
+    }
+
+    int countOfUser(Integer userId) {
+        return byUser.getOrDefault(userId, EMPTY).size();
+    }
+}
@@ -0,0 +1,33 @@
+package ch.heigvd.messages;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+// Lock stripes serializing the mutations of a message (and their notifications, see MessageStore.Listener).
+// Batches take every stripe, in order.
+final class MessageLocks {
+    private static final int STRIPES = 64;
+
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+
+    MessageLocks() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    ReentrantLock of(Integer msgId) {
+        return stripes[Math.floorMod(msgId, STRIPES)];
+    }
+
+    void lockAll() {
+        for (ReentrantLock lock : stripes) {
+            lock.lock();
+        }
+    }
+
+    void unlockAll() {
+        for (int i = STRIPES - 1; i >= 0; i--) {
+            stripes[i].unlock();
+        }
+    }
+}
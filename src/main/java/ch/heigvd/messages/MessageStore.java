@@ -0,0 +1,78 @@
+package ch.heigvd.messages;
+
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+// Stored messages with their timelines and full-text index.
+// Implementations make every change durable themselves (journal, database).
+public interface MessageStore {
+
+    // Told of every change while the store still holds the lock of the message (of all of them for a batch):
+    // the notifications of a message come in the order of its changes, never an edit after its deletion
+    interface Listener {
+        Listener NONE = new Listener() {
+        };
+
+        default void inserted(Message message) {
+        }
+
+        default void replaced(Message message) {
+        }
+
+        default void removed(Message message) {
+        }
+
+        default void insertedAll(List<Message> messages) {
+        }
+
+        default void removedAll(List<Message> messages) {
+        }
+    }
+
+    // Replace the listener (Listener.NONE at first)
+    void listen(Listener listener);
+
+    // ID for a new message, never handed out twice
+    Integer nextId();
+
+    // First of 'count' consecutive IDs for a batch of new messages, none of them handed out twice
+    Integer nextIds(int count);
+
+    Message get(Integer msgId);
+
+    // Store a new message, false when its ID is already used
+    boolean insert(Message message);
+
+    // Store new messages in one durable write and return those stored, without the ones whose ID is already used
+    List<Message> insertAll(List<Message> messages);
+
+    // Replace a message (same ID, same createdAt) and return the previous version, null when it was deleted
+    Message replace(Message message);
+
+    // Remove a message and return it, null when unknown
+    Message remove(Integer msgId);
+
+    // Remove messages in one durable write and return those removed, unknown IDs are skipped
+    List<Message> removeAll(List<Integer> msgIds);
+
+    // Remove every message of a user (account deleted), in one durable write, and return them.
+    // The listener is told of each removal on its own
+    List<Message> removeAllOfUser(Integer userId);
+
+    // Up to 'limit' messages, oldest first: of one user only when userId is not null, created at or after
+    // 'since' and strictly after the 'after' key (both optional). They are read as the iterator advances,
+    // never all held at once (the listings may be larger than the heap)
+    Iterator<Message> page(Integer userId, Instant since, MessageIndex.Key after, int limit);
+
+    int countOfUser(Integer userId);
+
+    // Best 'limit' messages for a full-text query, highest score first
+    List<SearchIndex.Hit> search(String query, int limit);
+
+    // Every message, in no particular order
+    void forEach(Consumer<Message> action);
+
+    int size();
+}
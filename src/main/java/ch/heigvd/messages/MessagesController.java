@@ -1,53 +1,70 @@
 package ch.heigvd.messages;
 
 import io.javalin.http.*;
+import io.javalin.http.sse.SseClient;
+
+// ---- JSON Imports ----
+import com.fasterxml.jackson.core.JsonGenerator;
+
+// ---- Java IO Imports ----
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 
 // ---- Java Time Imports ----
 import java.time.Instant;
 import java.time.LocalDate;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
 
 // ---- Java Util Imports ----
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
-// ---- Java Concurrent Imports ----
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
-
+import ch.heigvd.auth.SessionFilter;
+import ch.heigvd.auth.SessionStore;
 import ch.heigvd.users.User;
+import ch.heigvd.users.UserStore;
+import ch.heigvd.utils.Json;
+import ch.heigvd.utils.Pagination;
 
 public class MessagesController {
-    private final ConcurrentMap<Integer, Message> messages;
-    private final ConcurrentMap<Integer, User> users;
-    private final ConcurrentMap<String, Integer> cookies;
-    private final static AtomicInteger messageId = new AtomicInteger(1);
-    private final static AtomicReference<Instant> lastModified = new AtomicReference<>(Instant.now());
-
-    // Update lastModified atomically
-    public static Instant updateAndGetLastModified() {
-        return lastModified.updateAndGet(old -> {
-            Instant now = Instant.now();
-            return now.isAfter(old) ? now : old;
-        });
-    }
-
-    public MessagesController(ConcurrentMap<Integer, Message> messages,
-                              ConcurrentMap<Integer, User> users,
-                              ConcurrentMap<String, Integer> cookies) {
+    // Items of one batch request, which is applied in a single durable write
+    public static final int MAX_BATCH = 1000;
+
+    private final MessageStore messages;
+    private final UserStore users;
+    private final SessionStore sessions;
+    private final MessageEvents events = new MessageEvents();
+    private final MessageClock clock = new MessageClock();
+    private final ChangeLog changes = new ChangeLog(clock.firstVersion());
+    private final FeedCache feedCache = new FeedCache();
+    private final boolean gzipFeed;
+
+    public MessagesController(MessageStore messages,
+                              UserStore users,
+                              SessionStore sessions,
+                              boolean gzipFeed) {
         this.messages = messages;
         this.users = users;
-        this.cookies = cookies;
+        this.sessions = sessions;
+        this.gzipFeed = gzipFeed;
+
+        // Changes are versioned and pushed by the store, in the order it applies them. The messages already
+        // present are not in the log: clients get them from GET /messages
+        messages.listen(new Notifier());
     }
 
     public void create(Context ctx) {
         // ---------------------------------- COOKIE VALIDATION --------------------------------------------------------
-        String session = verifySessionId(ctx.cookie("session_id"));
-        Integer userId = getUserIdFromSession(session);
+        Integer userId = SessionFilter.userId(ctx);
 
         // ---------------------------------- BODY VALIDATION ----------------------------------------------------------
         Map<?, ?> raw = ctx.bodyAsClass(Map.class);
@@ -67,47 +84,96 @@ public class MessagesController {
             throw new BadRequestResponse("Missing content");
         }
 
-        // ------------------------------------------------ Check Conflicts --------------------------------------------
-        int msgId = messageId.getAndIncrement();
-        // Check for conflicts
-        for (Message message : messages.values()) {
-            if (message.userId().equals(userId) && message.msgId().equals(msgId)) {
-                throw new ConflictResponse();
-            }
-        }
         // ------------------------------------------------ Create Message ---------------------------------------------
+        int msgId = messages.nextId();
 
         Message newMessage =
                 new Message(
                         userId,
                         msgId,
-                        updateAndGetLastModified(),
+                        clock.tick(),
                         null,
                         content);
 
-
-        messages.put(msgId, newMessage);
+        // Check for conflicts
+        if (!messages.insert(newMessage)) {
+            throw new ConflictResponse();
+        }
 
         // ------------------------------------------------- Response --------------------------------------------------
         ctx.status(HttpStatus.CREATED);
-        ctx.json(newMessage.toCreatedMap());
+        Json.write(ctx, newMessage.toCreatedView());
+    }
+
+    public void createBatch(Context ctx) {
+        // ---------------------------------- COOKIE VALIDATION --------------------------------------------------------
+        Integer userId = SessionFilter.userId(ctx);
+
+        // ---------------------------------- BODY VALIDATION ----------------------------------------------------------
+        List<?> items = batchOf(ctx);
+
+        // Every item is validated on its own, an invalid one does not fail the others
+        List<String> contents = new ArrayList<>(items.size());
+        int valid = 0;
+        for (Object item : items) {
+            String content = item instanceof Map<?, ?> raw ? contentOf(raw) : null;
+            contents.add(content);
+            if (content != null) {
+                valid++;
+            }
+        }
+
+        // ------------------------------------------------ Create Messages --------------------------------------------
+        // One block of IDs and one timestamp for the whole batch, the timeline orders it by ID
+        int msgId = messages.nextIds(valid);
+        Instant createdAt = valid > 0 ? clock.tick() : null;
+
+        List<Message> batch = new ArrayList<>(valid);
+        for (String content : contents) {
+            if (content != null) {
+                batch.add(new Message(userId, msgId++, createdAt, null, content));
+            }
+        }
+
+        List<Integer> inserted = new ArrayList<>(batch.size());
+        for (Message message : messages.insertAll(batch)) {
+            inserted.add(message.msgId());
+        }
+
+        // ------------------------------------------------- Response --------------------------------------------------
+        // One result per item, in the order of the request
+        Set<Integer> stored = new HashSet<>(inserted);
+        List<Message.BatchResultView> results = new ArrayList<>(items.size());
+        int next = 0;
+        for (String content : contents) {
+            if (content == null) {
+                results.add(new Message.BatchResultView(HttpStatus.BAD_REQUEST.getCode(), null, "Invalid content"));
+            } else {
+                Integer id = batch.get(next++).msgId();
+                results.add(stored.contains(id)
+                        ? new Message.BatchResultView(HttpStatus.CREATED.getCode(), id, null)
+                        : new Message.BatchResultView(HttpStatus.CONFLICT.getCode(), null, "Conflict"));
+            }
+        }
+
+        ctx.status(HttpStatus.OK);
+        Json.write(ctx, results);
     }
 
     public void update(Context ctx) {
         // ---------------------------------- COOKIE VALIDATION --------------------------------------------------------
-        String session = verifySessionId(ctx.cookie("session_id"));
-        Integer userId = getUserIdFromSession(session);
+        Integer userId = SessionFilter.userId(ctx);
 
         // ---------------------------------- PATH PARAM VALIDATION ----------------------------------------------------
         Integer msgId = ctx.pathParamAsClass("msgId", Integer.class).get();
 
         // Check message exists
-        if (!messages.containsKey(msgId)) {
+        Message existingMessage = messages.get(msgId);
+        if (existingMessage == null) {
             throw new NotFoundResponse();
         }
 
         // Check message belongs to user
-        Message existingMessage = messages.get(msgId);
         if (!existingMessage.userId().equals(userId)) {
             throw new ForbiddenResponse("Forbidden: You can only update your own messages");
         }
@@ -136,38 +202,42 @@ public class MessagesController {
                 existingMessage.userId(),
                 existingMessage.msgId(),
                 existingMessage.createdAt(),
-                updateAndGetLastModified(),
+                clock.tick(),
                 content);
 
-        messages.replace(msgId, updateMessage);
+        // The message may have been deleted in the meantime
+        if (messages.replace(updateMessage) == null) {
+            throw new NotFoundResponse();
+        }
 
         // ------------------------------------------------- Response --------------------------------------------------
         ctx.status(HttpStatus.OK);
-        ctx.json(updateMessage.toEditedMap());
+        Json.write(ctx, updateMessage.toEditedView());
     }
 
     public void getMine(Context ctx) {
         // ---------------------------------- COOKIE VALIDATION --------------------------------------------------------
-        String session = verifySessionId(ctx.cookie("session_id"));
-        Integer userId = getUserIdFromSession(session);
-
-        // ---------------------------------- Retrieve Messages --------------------------------------------------------
-        List<Map<String, Object>> userMessages = new ArrayList<>();
-        for (Message message : messages.values()) {
-            if (message.userId().equals(userId)) {
-                userMessages.add(message.toMineMap());
-            }
-        }
+        Integer userId = SessionFilter.userId(ctx);
 
         // ------------------------------------------------- Response --------------------------------------------------
         ctx.status(HttpStatus.OK);
-        ctx.json(userMessages);
+        ctx.contentType(ContentType.APPLICATION_JSON);
+
+        // ---------------------------------- Stream Messages ----------------------------------------------------------
+        // Read from the author's timeline as they are written, none of them held by the response
+        Iterator<Message> own = messages.page(userId, null, null, Integer.MAX_VALUE);
+        try (JsonGenerator gen = Json.MAPPER.getFactory().createGenerator(ctx.outputStream())) {
+            gen.writeStartArray();
+            while (own.hasNext()) {
+                Json.writerFor(Message.MineView.class).writeValue(gen, own.next().toMineView());
+            }
+            gen.writeEndArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     public void getAll(Context ctx) {
-        // ---------------------------------- COOKIE VALIDATION --------------------------------------------------------
-        String session = verifySessionId(ctx.cookie("session_id"));
-        getUserIdFromSession(session);
 
         // ---------------------------------- Cache & Query Params Variables -------------------------------------------
         // Variables Cache Validation
@@ -176,7 +246,11 @@ public class MessagesController {
         // Variables Query Parameters
         String since = null;
         String username = null;
+        Integer authorId = null;
+        boolean unknownAuthor = false;
         Instant sinceDateTime = null;
+        int limit = Pagination.DEFAULT_LIMIT;
+        MessageIndex.Key after = null;
 
         // ---------------------------------- Cache Validation & Query Params ------------------------------------------
         // Check for query parameters
@@ -184,9 +258,10 @@ public class MessagesController {
 
         if(hasQueryParams) {
             // --------------------------------- Query Params Validation ----------------------------
-            // validate allowed query params ('username' and 'since')
+            // validate allowed query params ('username', 'since', 'limit' and 'cursor')
+            List<String> allowed = List.of("username", "since", "limit", "cursor");
             for (String key : ctx.queryParamMap().keySet()) {
-                if (key != null && !"username".equals(key) && !"since".equals(key)) {
+                if (key != null && !allowed.contains(key)) {
                     throw new BadRequestResponse();
                 }
             }
@@ -209,14 +284,47 @@ public class MessagesController {
                 sinceDateTime = date.atStartOfDay(ZoneOffset.UTC).toInstant();
             }
 
-            // Check username param
+            // Check username param, resolved once to the author's ID (an unknown user has no messages)
             if (username != null && username.isBlank()) {
                 throw new BadRequestResponse("username parameter cannot be blank");
             }
+            if (username != null) {
+                User author = users.findByUsername(username);
+                if (author != null) {
+                    authorId = author.userId();
+                } else {
+                    unknownAuthor = true;
+                }
+            }
+
+            // Check pagination params
+            limit = Pagination.limit(ctx);
+            String position = Pagination.cursor(ctx);
+            if (position != null) {
+                try {
+                    after = MessageIndex.Key.fromPosition(position);
+                } catch (RuntimeException e) {
+                    throw new BadRequestResponse("Invalid cursor");
+                }
+            }
+
+        }
 
-        } else {
-            // ------------------------------- Cache Validation --------------------------------
-            // Cache validation only if not query parameters are present
+        // ---------------------------------- Cache Validation ---------------------------------------------------------
+        // Validators are read before the scan: a mutation racing with it makes them older than the body, never newer
+        Instant modified = clock.lastModified();
+        String etag = clock.etag(changes.version());
+        ctx.header("ETag", etag);
+
+        // The ETag works with the query parameters and below one second, it wins over If-Modified-Since
+        String ifNoneMatch = ctx.header("If-None-Match");
+        if (ifNoneMatch != null) {
+            if (MessageClock.matches(ifNoneMatch, etag)) {
+                ctx.status(HttpStatus.NOT_MODIFIED);
+                return;
+            }
+        } else if (!hasQueryParams) {
+            // Date validation only if no query parameters are present
             String header = ctx.header("If-Modified-Since");
             if (header != null) {
                 try {
@@ -224,63 +332,180 @@ public class MessagesController {
                 } catch (Exception e) {
                     throw new BadRequestResponse("Invalid If-Modified-Since header format");
                 }
-                if (!lastModified.get().isAfter(ifModifiedSince)) {
+                // The header only has seconds
+                if (!modified.truncatedTo(ChronoUnit.SECONDS).isAfter(ifModifiedSince)) {
                     ctx.status(HttpStatus.NOT_MODIFIED);
                     return;
                 }
             }
         }
 
-        // ---------------------------------- Retrieve Messages --------------------------------------------------------
-        List<Map<String, Object>> msg = new ArrayList<>();
+        // ---------------------------------- Unfiltered Feed ----------------------------------------------------------
+        // The first page of the feed is what pollers ask for: served from its rendering at this version
+        if (!hasQueryParams) {
+            FeedCache.Rendered feed = feedCache.get(changes.version(), () -> render(Pagination.DEFAULT_LIMIT));
+
+            setFeedHeaders(ctx, modified, feed.nextCursor());
+            ctx.header(Header.VARY, Header.ACCEPT_ENCODING);
+            String acceptEncoding = ctx.header(Header.ACCEPT_ENCODING);
+            if (feed.gzipped() != null && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+                ctx.header(Header.CONTENT_ENCODING, "gzip");
+                ctx.result(feed.gzipped());
+            } else {
+                ctx.result(feed.body());
+            }
+            return;
+        }
+
+        // ---------------------------------- Locate Page ------------------------------------------------------------
+        // Range scan on the timeline (of the author only when filtering), results come back oldest first.
+        // This pass only finds where the page ends: the headers are set before the body is streamed.
+        PageEnd end = unknownAuthor ? PageEnd.EMPTY : locate(authorId, sinceDateTime, after, limit);
 
-        for (Message message : this.messages.values()) {
-            if (sinceDateTime != null && message.createdAt().isBefore(sinceDateTime)) {
-                continue;
+        // ------------------------------------------------- Response --------------------------------------------------
+        setFeedHeaders(ctx, modified, end.nextCursor());
+
+        // ---------------------------------- Stream Messages ----------------------------------------------------------
+        // Second pass, each message is written straight to the response, no intermediate list
+        writeMessages(ctx.outputStream(), authorId, sinceDateTime, after, end);
+    }
+
+    public void search(Context ctx) {
+
+        // ---------------------------------- Query Params Validation --------------------------------------------------
+        List<String> allowed = List.of("q", "limit");
+        for (String key : ctx.queryParamMap().keySet()) {
+            if (!allowed.contains(key)) {
+                throw new BadRequestResponse();
             }
+        }
 
-            if (sinceDateTime != null && message.editedAt() != null && message.editedAt().isBefore(sinceDateTime)) {
+        String query = ctx.queryParam("q");
+        if (query == null || query.isBlank()) {
+            throw new BadRequestResponse("Missing q parameter");
+        }
+        int limit = Pagination.limit(ctx);
+
+        // ---------------------------------- Search -------------------------------------------------------------------
+        List<Message.FoundView> found = new ArrayList<>();
+        for (SearchIndex.Hit hit : messages.search(query, limit)) {
+            // Deleted since the search
+            Message message = messages.get(hit.msgId());
+            if (message == null) {
                 continue;
             }
+            found.add(new Message.FoundView(
+                    message.msgId(),
+                    users.usernameOf(message.userId()),
+                    message.createdAt(),
+                    message.editedAt(),
+                    message.content(),
+                    hit.score()));
+        }
 
-            if (username != null && !users.get(message.userId()).username().equalsIgnoreCase(username)) {
-                continue;
+        // ------------------------------------------------- Response --------------------------------------------------
+        ctx.status(HttpStatus.OK);
+        Json.write(ctx, found);
+    }
+
+    public void getChanges(Context ctx) {
+
+        // ---------------------------------- Query Params Validation --------------------------------------------------
+        List<String> allowed = List.of("sinceVersion", "limit");
+        for (String key : ctx.queryParamMap().keySet()) {
+            if (!allowed.contains(key)) {
+                throw new BadRequestResponse();
+            }
+        }
+
+        long sinceVersion = 0;
+        String raw = ctx.queryParam("sinceVersion");
+        if (raw != null) {
+            try {
+                sinceVersion = Long.parseLong(raw);
+            } catch (NumberFormatException e) {
+                throw new BadRequestResponse("sinceVersion parameter must be a number");
+            }
+            if (sinceVersion < 0) {
+                throw new BadRequestResponse("sinceVersion parameter must be a number");
             }
+        }
+        int limit = Pagination.limit(ctx);
+
+        // 0 is a client without any message yet: it gets the current version only, then loads GET /messages
+        // (which is at least at that version) and follows the changes from there
+        long current = changes.version();
+        if (sinceVersion == 0) {
+            ctx.status(HttpStatus.OK);
+            Json.write(ctx, new Message.ChangesView(current, false, List.of()));
+            return;
+        }
 
-            Map<String, Object> res = new HashMap<>();
-            res.put("username", users.get(message.userId()).username());
-            res.put("createdAt", message.createdAt());
-            res.put("editedAt", message.editedAt());
-            res.put("content", message.content());
+        // Changes older than the horizon are gone, the versions of a previous run are all below it, and a
+        // version from the future comes from another server: in every case the client must reload the full list
+        if (sinceVersion < changes.horizon() || sinceVersion > current) {
+            throw new GoneResponse("Unknown version, reload GET /messages");
+        }
+
+        // ---------------------------------- Retrieve Changes ---------------------------------------------------------
+        long lastReturned = sinceVersion;
+        boolean hasMore = false;
+        List<Object> changed = new ArrayList<>();
 
-            msg.add(res);
+        for (ChangeLog.Change change : changes.between(sinceVersion, current)) {
+            if (changed.size() == limit) {
+                hasMore = true;
+                break;
+            }
+            lastReturned = change.version();
+
+            if (change.isDeletion()) {
+                changed.add(new Message.DeletedView(change.version(), "deleted", change.msgId()));
+            } else {
+                // Deleted since this change: its tombstone comes later in the log
+                Message message = messages.get(change.msgId());
+                if (message == null) {
+                    continue;
+                }
+                changed.add(new Message.ChangedView(
+                        change.version(),
+                        "upserted",
+                        message.msgId(),
+                        message.userId(),
+                        users.usernameOf(message.userId()),
+                        message.createdAt(),
+                        message.editedAt(),
+                        message.content()));
+            }
+        }
+
+        // Changes dropped from the log during the scan may have been missed
+        if (sinceVersion < changes.horizon()) {
+            throw new GoneResponse("Unknown version, reload GET /messages");
         }
 
         // ------------------------------------------------- Response --------------------------------------------------
-        // Set Last-Modified header
-        ctx.header("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME
-                .withZone(ZoneOffset.UTC)
-                .format(lastModified.get()));
+        // The client passes 'version' as sinceVersion on its next call
+        long version = hasMore ? lastReturned : current;
 
         ctx.status(HttpStatus.OK);
-        ctx.json(msg);
+        Json.write(ctx, new Message.ChangesView(version, hasMore, changed));
     }
 
     public void delete(Context ctx) {
         // ---------------------------------- COOKIE VALIDATION --------------------------------------------------------
-        String session = verifySessionId(ctx.cookie("session_id"));
-        Integer userId = getUserIdFromSession(session);
+        Integer userId = SessionFilter.userId(ctx);
 
         // ---------------------------------- PATH PARAM VALIDATION ----------------------------------------------------
         Integer msgId = ctx.pathParamAsClass("msgId", Integer.class).get();
 
-        if (!messages.containsKey(msgId)) {
+        Message existingMessage = messages.get(msgId);
+        if (existingMessage == null) {
             throw new NotFoundResponse();
         }
 
         // ---------------------------------- Check Ownership ----------------------------------------------------------
         // Check message belongs to user
-        Message existingMessage = messages.get(msgId);
         if (!existingMessage.userId().equals(userId)) {
             ctx.status(HttpStatus.FORBIDDEN);
             return;
@@ -293,42 +518,235 @@ public class MessagesController {
         ctx.status(HttpStatus.NO_CONTENT);
     }
 
-    public boolean deleteAllMessagesForUser(Integer userId) {
-        boolean deleted = false;
-        List<Integer> messagesToDelete = new ArrayList<>();
+    public void deleteBatch(Context ctx) {
+        // ---------------------------------- COOKIE VALIDATION --------------------------------------------------------
+        Integer userId = SessionFilter.userId(ctx);
+
+        // ---------------------------------- BODY VALIDATION ----------------------------------------------------------
+        List<?> items = batchOf(ctx);
+
+        // ---------------------------------- Check Ownership ----------------------------------------------------------
+        // Status of each item, the ones still at NO_CONTENT are deleted below
+        List<HttpStatus> statuses = new ArrayList<>(items.size());
+        Set<Integer> own = new LinkedHashSet<>();
+        for (Object item : items) {
+            if (!(item instanceof Integer msgId)) {
+                statuses.add(HttpStatus.BAD_REQUEST);
+                continue;
+            }
+            Message existingMessage = messages.get(msgId);
+            if (existingMessage == null || own.contains(msgId)) {
+                statuses.add(HttpStatus.NOT_FOUND);
+            } else if (!existingMessage.userId().equals(userId)) {
+                statuses.add(HttpStatus.FORBIDDEN);
+            } else {
+                own.add(msgId);
+                statuses.add(HttpStatus.NO_CONTENT);
+            }
+        }
 
-        // Collect message IDs to delete
-        for (Message message : messages.values()) {
-            if (message.userId().equals(userId)) {
-                messagesToDelete.add(message.msgId());
+        // ---------------------------------- Delete Messages ----------------------------------------------------------
+        Set<Integer> removed = new HashSet<>();
+        for (Message message : messages.removeAll(new ArrayList<>(own))) {
+            removed.add(message.msgId());
+        }
+
+        // ------------------------------------------------- Response --------------------------------------------------
+        List<Message.BatchResultView> results = new ArrayList<>(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            HttpStatus status = statuses.get(i);
+            Integer msgId = items.get(i) instanceof Integer id ? id : null;
+            // Deleted in the meantime by another request
+            if (status == HttpStatus.NO_CONTENT && !removed.remove(msgId)) {
+                status = HttpStatus.NOT_FOUND;
             }
+            results.add(new Message.BatchResultView(status.getCode(), msgId,
+                    status == HttpStatus.BAD_REQUEST ? "Invalid msgId" : null));
         }
 
-        // Delete collected messages
-        for (Integer msgId : messagesToDelete) {
-            messages.remove(msgId);
-            deleted = true;
+        ctx.status(HttpStatus.OK);
+        Json.write(ctx, results);
+    }
+
+    public boolean deleteAllMessagesForUser(Integer userId) {
+        // The store deletes them in a single durable write
+        return !messages.removeAllOfUser(userId).isEmpty();
+    }
+
+    public int countMessagesForUser(Integer userId) {
+        return messages.countOfUser(userId);
+    }
+
+    // ---- Replication ----
+
+    // A message saved on the leader, applied on this follower like a local write
+    public void replicateSaved(Message message) {
+        clock.tick();
+        if (messages.replace(message) == null) {
+            messages.insert(message);
         }
+    }
 
-        return deleted;
+    public void replicateDeleted(Integer msgId) {
+        messages.remove(msgId);
+    }
+
+    public void events(SseClient client) {
+        // ---------------------------------- COOKIE VALIDATION --------------------------------------------------------
+        String session = SessionFilter.sessionId(client.ctx());
+
+        // ---------------------------------- Subscribe ----------------------------------------------------------------
+        // The stream ends when the client disconnects, falls behind, or its session is closed
+        events.subscribe(client, () -> sessions.isValid(session));
+    }
+
+    // ---- Changes ----
+
+    // Versions every change in the change log and pushes it to the SSE feed, under the lock of the store:
+    // an edit racing with a delete is recorded before the tombstone, or not at all
+    private final class Notifier implements MessageStore.Listener {
+        @Override
+        public void inserted(Message message) {
+            events.created(toEvent(message), changes.recordUpsert(message.msgId()));
+        }
+
+        @Override
+        public void replaced(Message message) {
+            events.updated(toEvent(message), changes.recordUpsert(message.msgId()));
+        }
+
+        @Override
+        public void removed(Message message) {
+            clock.tick();
+            events.deleted(message.msgId(), changes.recordDeletion(message.msgId()));
+        }
+
+        // A batch is one change of the log and one event
+        @Override
+        public void insertedAll(List<Message> inserted) {
+            events.changed(inserted.size(), changes.recordUpserts(idsOf(inserted)));
+        }
+
+        @Override
+        public void removedAll(List<Message> removed) {
+            clock.tick();
+            events.changed(removed.size(), changes.recordDeletions(idsOf(removed)));
+        }
+
+        private static List<Integer> idsOf(List<Message> batch) {
+            List<Integer> ids = new ArrayList<>(batch.size());
+            for (Message message : batch) {
+                ids.add(message.msgId());
+            }
+            return ids;
+        }
     }
 
     // Function utils
 
-    // Validate sessionId
-    protected String verifySessionId(String session) {
-        if (session == null || !cookies.containsKey(session)) {
-            throw new UnauthorizedResponse("Invalid or missing cookie");
+    // Body of a batch request: a non-empty JSON array of at most MAX_BATCH items
+    private static List<?> batchOf(Context ctx) {
+        Object raw = ctx.bodyAsClass(Object.class);
+        if (!(raw instanceof List<?> items) || items.isEmpty()) {
+            throw new BadRequestResponse("Request body must be a non-empty array");
+        }
+        if (items.size() > MAX_BATCH) {
+            throw new BadRequestResponse("At most " + MAX_BATCH + " items per batch");
+        }
+        return items;
+    }
+
+    // Content of one batch item ({"content": "..."} and nothing else), null when invalid
+    private static String contentOf(Map<?, ?> raw) {
+        if (raw.size() != 1 || !(raw.get("content") instanceof String content) || content.isBlank()) {
+            return null;
+        }
+        return content.trim();
+    }
+
+    // Where a page ends: its last message (null when empty), and whether more messages follow
+    private record PageEnd(MessageIndex.Key last, boolean hasMore) {
+        static final PageEnd EMPTY = new PageEnd(null, false);
+
+        // Cursor of the page after this one
+        String nextCursor() {
+            return hasMore ? last.toPosition() : null;
         }
-        return session;
     }
 
-    // Get userId from sessionId
-    protected Integer getUserIdFromSession(String session) {
-        Integer userId = cookies.get(session);
-        if (userId == null) {
-            throw new UnauthorizedResponse("Invalid session");
+    // One more message than the page size means there is a next page. The messages are only counted
+    private PageEnd locate(Integer authorId, Instant since, MessageIndex.Key after, int limit) {
+        Iterator<Message> range = messages.page(authorId, since, after, limit + 1);
+        MessageIndex.Key last = null;
+        for (int count = 0; range.hasNext(); count++) {
+            Message message = range.next();
+            if (count == limit) {
+                return new PageEnd(last, true);
+            }
+            last = MessageIndex.Key.of(message);
         }
-        return userId;
+        return new PageEnd(last, false);
+    }
+
+    // Serialize the first page of the unfiltered feed, once per version (see FeedCache)
+    private FeedCache.Rendered render(int limit) {
+        PageEnd end = locate(null, null, null, limit);
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeMessages(body, null, null, null, end);
+        return FeedCache.Rendered.of(body.toByteArray(), end.nextCursor(), gzipFeed);
+    }
+
+    private void setFeedHeaders(Context ctx, Instant modified, String nextCursor) {
+        // Set Last-Modified header
+        ctx.header("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME
+                .withZone(ZoneOffset.UTC)
+                .format(modified));
+
+        if (nextCursor != null) {
+            Pagination.setNextCursor(ctx, nextCursor);
+        }
+
+        ctx.status(HttpStatus.OK);
+        ctx.contentType(ContentType.APPLICATION_JSON);
+    }
+
+    // The messages of the page located by 'end', read again from the store: the ones inserted meanwhile after its
+    // last message are left for the next page
+    private void writeMessages(OutputStream out, Integer authorId, Instant since, MessageIndex.Key after, PageEnd end) {
+        try (JsonGenerator gen = Json.MAPPER.getFactory().createGenerator(out)) {
+            gen.writeStartArray();
+
+            Iterator<Message> page = end.last() != null
+                    ? messages.page(authorId, since, after, Integer.MAX_VALUE)
+                    : List.<Message>of().iterator();
+            while (page.hasNext()) {
+                Message message = page.next();
+                if (MessageIndex.Key.of(message).compareTo(end.last()) > 0) {
+                    break;
+                }
+                gen.writeStartObject();
+                gen.writeStringField("username", users.usernameOf(message.userId()));
+                gen.writeStringField("createdAt", message.createdAt().toString());
+                gen.writeStringField("editedAt", message.editedAt() != null ? message.editedAt().toString() : null);
+                gen.writeStringField("content", message.content());
+                gen.writeEndObject();
+            }
+
+            gen.writeEndArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Build the payload pushed to the SSE feed
+    private MessageEvents.MessageEvent toEvent(Message message) {
+        return new MessageEvents.MessageEvent(
+                message.msgId(),
+                message.userId(),
+                users.usernameOf(message.userId()),
+                message.createdAt(),
+                message.editedAt(),
+                message.content());
     }
 }
@@ -0,0 +1,196 @@
+package ch.heigvd.messages;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+// Inverted index over the message contents: term -> (msgId -> posting), ranked with BM25.
+// Terms are the letter/digit runs of the content, lower-cased and without accents ("Été" matches "ete").
+// Updates are per term (compute on the posting map) and searches read the postings without locking:
+// a search racing with an edit may see part of it, as with the other indexes.
+//
+// Very common terms ("hello", "the"...) barely move a BM25 score but cost a scan of most messages:
+// they are skipped when the query has rarer terms, and otherwise scanned up to MAX_SCAN postings
+// (the ranking is then computed on that sample only).
+class SearchIndex {
+    static final int MAX_QUERY_TERMS = 16;
+    static final double COMMON_TERM_RATIO = 0.05;
+    static final int MAX_SCAN = 100_000;
+
+    private static final int MAX_TERM_LENGTH = 64;
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{M}+");
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    // BM25 parameters, the usual defaults
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    record Hit(Integer msgId, double score) {}
+
+    // A posting packs the occurrences in the message (high 16 bits) and the message length in terms (low 16 bits),
+    // so scoring needs no other lookup
+    private final ConcurrentMap<String, ConcurrentMap<Integer, Integer>> postings = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, Integer> lengths = new ConcurrentHashMap<>();
+    private final AtomicInteger documents = new AtomicInteger();
+    private final AtomicLong totalLength = new AtomicLong();
+
+    void add(Message message) {
+        Map<String, Integer> terms = countTerms(message.content());
+        int length = terms.values().stream().mapToInt(Integer::intValue).sum();
+
+        for (Map.Entry<String, Integer> term : terms.entrySet()) {
+            postings.compute(term.getKey(), (t, docs) -> {
+                if (docs == null) {
+                    docs = new ConcurrentHashMap<>();
+                }
+                docs.put(message.msgId(), posting(term.getValue(), length));
+                return docs;
+            });
+        }
+        Integer previous = lengths.put(message.msgId(), length);
+        if (previous == null) {
+            documents.incrementAndGet();
+        }
+        totalLength.addAndGet(length - (previous != null ? previous : 0));
+    }
+
+    void remove(Message message) {
+        for (String term : countTerms(message.content()).keySet()) {
+            // An empty posting list is dropped, the vocabulary only holds terms still in use
+            postings.computeIfPresent(term, (t, docs) -> {
+                docs.remove(message.msgId());
+                return docs.isEmpty() ? null : docs;
+            });
+        }
+        Integer length = lengths.remove(message.msgId());
+        if (length != null) {
+            documents.decrementAndGet();
+            totalLength.addAndGet(-length);
+        }
+    }
+
+    void replace(Message previous, Message message) {
+        remove(previous);
+        add(message);
+    }
+
+    // Best 'limit' messages for the query, highest score first (newest first on ties)
+    List<Hit> search(String query, int limit) {
+        List<Term> terms = new ArrayList<>();
+        for (String term : countTerms(query).keySet()) {
+            Map<Integer, Integer> docs = postings.get(term);
+            if (docs != null && terms.size() < MAX_QUERY_TERMS) {
+                terms.add(new Term(docs.size(), () -> docs.entrySet()));
+            }
+        }
+        return rank(terms, documents.get(), totalLength.get(), limit);
+    }
+
+    // A query term found in 'documents' messages, with its postings (msgId -> posting) loaded on demand:
+    // the common terms skipped by the ranking are never read
+    record Term(int documents, Supplier<Iterable<Map.Entry<Integer, Integer>>> postings) {}
+
+    // BM25 ranking of the messages having some of the terms, shared by the stores
+    static List<Hit> rank(List<Term> found, int documents, long totalLength, int limit) {
+        int n = Math.max(documents, 1);
+        double averageLength = Math.max((double) totalLength / n, 1);
+
+        // Common terms only count when there is nothing rarer to rank on
+        List<Term> matching = new ArrayList<>();
+        for (Term term : found) {
+            if (term.documents() <= n * COMMON_TERM_RATIO) {
+                matching.add(term);
+            }
+        }
+        if (matching.isEmpty()) {
+            matching = found;
+        }
+        List<Double> idfs = new ArrayList<>();
+        for (Term term : matching) {
+            idfs.add(Math.log(1 + (n - term.documents() + 0.5) / (term.documents() + 0.5)));
+        }
+
+        // Top-k with a min-heap of size 'limit'
+        Comparator<Hit> ranking = Comparator.comparingDouble(Hit::score).thenComparing(Hit::msgId);
+        PriorityQueue<Hit> best = new PriorityQueue<>(limit + 1, ranking);
+
+        if (matching.size() == 1) {
+            // Single term: scored straight into the heap, no accumulation map
+            int scanned = 0;
+            for (Map.Entry<Integer, Integer> doc : matching.get(0).postings().get()) {
+                if (scanned++ == MAX_SCAN) {
+                    break;
+                }
+                offer(best, limit, new Hit(doc.getKey(), score(idfs.get(0), doc.getValue(), averageLength)));
+            }
+        } else {
+            // Sum of the BM25 contributions of every term, per message
+            Map<Integer, Double> scores = new HashMap<>();
+            for (int i = 0; i < matching.size(); i++) {
+                int scanned = 0;
+                for (Map.Entry<Integer, Integer> doc : matching.get(i).postings().get()) {
+                    if (scanned++ == MAX_SCAN) {
+                        break;
+                    }
+                    scores.merge(doc.getKey(), score(idfs.get(i), doc.getValue(), averageLength), Double::sum);
+                }
+            }
+            for (Map.Entry<Integer, Double> entry : scores.entrySet()) {
+                offer(best, limit, new Hit(entry.getKey(), entry.getValue()));
+            }
+        }
+
+        List<Hit> hits = new ArrayList<>(best);
+        hits.sort(ranking.reversed());
+        return hits;
+    }
+
+    private static double score(double idf, int posting, double averageLength) {
+        double tf = posting >>> 16;
+        int length = posting & 0xFFFF;
+        return idf * tf * (K1 + 1) / (tf + K1 * (1 - B + B * length / averageLength));
+    }
+
+    static int posting(int occurrences, int length) {
+        return Math.min(occurrences, 0xFFFF) << 16 | Math.min(length, 0xFFFF);
+    }
+
+    private static void offer(PriorityQueue<Hit> best, int limit, Hit hit) {
+        if (best.size() < limit) {
+            best.add(hit);
+        } else if (best.comparator().compare(hit, best.peek()) > 0) {
+            best.poll();
+            best.add(hit);
+        }
+    }
+
+    // Normalized terms of a text with their number of occurrences
+    static Map<String, Integer> countTerms(String text) {
+        Map<String, Integer> terms = new HashMap<>();
+        if (text == null) {
+            return terms;
+        }
+        // Accents are only stripped when there can be some
+        String normalized = text.chars().allMatch(c -> c < 0x80)
+                ? text
+                : DIACRITICS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("");
+        for (String token : SEPARATORS.split(normalized.toLowerCase(Locale.ROOT))) {
+            if (token.isEmpty() || token.length() > MAX_TERM_LENGTH) {
+                continue;
+            }
+            terms.merge(token, 1, Integer::sum);
+        }
+        return terms;
+    }
+}
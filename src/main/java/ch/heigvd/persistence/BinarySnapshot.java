@@ -0,0 +1,208 @@
+package ch.heigvd.persistence;
+
+import ch.heigvd.auth.Session;
+import ch.heigvd.messages.Message;
+import ch.heigvd.users.User;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+
+// Compact binary dump of the Database, read back through memory-mapped windows.
+//
+// Layout (big-endian):
+//  header   : magic int, format int, segment long, userCount int, messageCount int, sessionCount int
+//  users    : userId int, username str, email str, password str, isAdmin byte
+//  messages : userId int, msgId int, createdAt long, editedAt long, content str
+//  sessions : sessionId str, userId int, createdAt long (epoch millis)
+// where str is a length int (-1 for null) followed by UTF-8 bytes,
+// and instants are epoch nanoseconds (Long.MIN_VALUE for null).
+final class BinarySnapshot {
+    static final int MAGIC = 0x4A535553; // "JSUS"
+    static final int FORMAT = 2;
+    static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 4 + 4;
+
+    // Size of the mapped window, a single mapping cannot exceed 2 GB
+    private static final long WINDOW = 1L << 30;
+
+    private BinarySnapshot() {
+    }
+
+    // ------------------------------------------------- WRITE --------------------------------------------------------
+    static void write(Path file, Database database, long segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // The maps keep changing while they are dumped: counts are only known at the end
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            out.write(new byte[HEADER_SIZE]);
+
+            int users = 0;
+            for (User user : database.users().values()) {
+                out.writeInt(user.userId());
+                writeString(out, user.username());
+                writeString(out, user.email());
+                writeString(out, user.password());
+                out.writeByte(Boolean.TRUE.equals(user.isAdmin()) ? 1 : 0);
+                users++;
+            }
+
+            int messages = 0;
+            for (Message message : database.messages().values()) {
+                out.writeInt(message.userId());
+                out.writeInt(message.msgId());
+                out.writeLong(toNanos(message.createdAt()));
+                out.writeLong(toNanos(message.editedAt()));
+                writeString(out, message.content());
+                messages++;
+            }
+
+            int sessions = 0;
+            for (Session session : database.sessions().values()) {
+                writeString(out, session.id());
+                out.writeInt(session.userId());
+                out.writeLong(session.createdAt());
+                sessions++;
+            }
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                    .putInt(MAGIC)
+                    .putInt(FORMAT)
+                    .putLong(segment)
+                    .putInt(users)
+                    .putInt(messages)
+                    .putInt(sessions)
+                    .flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static long toNanos(Instant instant) {
+        if (instant == null) {
+            return Long.MIN_VALUE;
+        }
+        return Math.addExact(Math.multiplyExact(instant.getEpochSecond(), 1_000_000_000L), instant.getNano());
+    }
+
+    // ------------------------------------------------- READ ---------------------------------------------------------
+    // Load the snapshot into the database, returns the first journal segment to replay over it
+    static long read(Path file, Database database) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Input in = new Input(channel);
+
+            if (in.getInt() != MAGIC) {
+                throw new IOException("Not a snapshot file: " + file);
+            }
+            int format = in.getInt();
+            if (format != FORMAT) {
+                throw new IOException("Unsupported snapshot format " + format + " (expected " + FORMAT + "): " + file);
+            }
+            long segment = in.getLong();
+            int users = in.getInt();
+            int messages = in.getInt();
+            int sessions = in.getInt();
+
+            for (int i = 0; i < users; i++) {
+                User user = new User(in.getInt(), in.getString(), in.getString(), in.getString(), in.getByte() == 1);
+                database.users().put(user.userId(), user);
+            }
+
+            for (int i = 0; i < messages; i++) {
+                Message message = new Message(in.getInt(), in.getInt(), in.getInstant(), in.getInstant(), in.getString());
+                database.messages().put(message.msgId(), message);
+            }
+
+            for (int i = 0; i < sessions; i++) {
+                Session session = new Session(in.getString(), in.getInt(), in.getLong());
+                database.sessions().put(session.id(), session);
+            }
+            return segment;
+        }
+    }
+
+    // Sequential reader over the file, mapping it one window at a time
+    private static final class Input {
+        private final FileChannel channel;
+        private final long size;
+        private MappedByteBuffer buffer;
+        private long base;
+
+        Input(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+            map(0);
+        }
+
+        private void map(long position) throws IOException {
+            base = position;
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, size - position));
+        }
+
+        // Make sure the next n bytes are in the current window
+        private void ensure(int n) throws IOException {
+            if (buffer.remaining() >= n) {
+                return;
+            }
+            long position = base + buffer.position();
+            if (size - position < n) {
+                throw new IOException("Truncated snapshot");
+            }
+            map(position);
+        }
+
+        byte getByte() throws IOException {
+            ensure(1);
+            return buffer.get();
+        }
+
+        int getInt() throws IOException {
+            ensure(4);
+            return buffer.getInt();
+        }
+
+        long getLong() throws IOException {
+            ensure(8);
+            return buffer.getLong();
+        }
+
+        Instant getInstant() throws IOException {
+            long nanos = getLong();
+            if (nanos == Long.MIN_VALUE) {
+                return null;
+            }
+            return Instant.ofEpochSecond(Math.floorDiv(nanos, 1_000_000_000L), Math.floorMod(nanos, 1_000_000_000L));
+        }
+
+        String getString() throws IOException {
+            int length = getInt();
+            if (length < 0) {
+                return null;
+            }
+            ensure(length);
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package ch.heigvd.persistence;
+
+import ch.heigvd.auth.Session;
+import ch.heigvd.messages.Message;
+import ch.heigvd.users.User;
+
+import java.util.concurrent.ConcurrentMap;
+
+// The in-memory maps holding the whole application state
+public record Database(
+        ConcurrentMap<Integer, User> users,
+        ConcurrentMap<Integer, Message> messages,
+        ConcurrentMap<String, Session> sessions
+) {
+}
@@ -0,0 +1,293 @@
+package ch.heigvd.persistence;
+
+import ch.heigvd.utils.Json;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+// Append-only journal of JSON lines with periodic snapshots, stored in one data directory:
+//  - journal-<n>.log : mutations, one per line, in the order they were appended
+//  - snapshot.bin    : the whole Database, plus the first segment to replay on top of it (see BinarySnapshot)
+//
+// A single writer thread drains every pending append, writes them and fsyncs once (group commit).
+// Every 'snapshotEvery' mutations the writer starts a new segment and a background thread dumps the maps.
+// The dump is fuzzy (the maps keep changing meanwhile), which is fine: mutations are applied to the maps
+// before being appended, so anything missing from the dump is in the new segment, replayed over it.
+public class FileJournal implements Journal {
+    private static final Logger LOG = LoggerFactory.getLogger(FileJournal.class);
+
+    private static final String SNAPSHOT = "snapshot.bin";
+    private static final int MAX_BATCH = 4096;
+
+    // The lines of 'mutations' mutations, appended together
+    private record Pending(byte[] lines, int mutations, CompletableFuture<Void> done) {}
+
+    private static final Pending STOP = new Pending(null, 0, null);
+
+    private final Path directory;
+    private final Database database;
+    private final int snapshotEvery;
+
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private final ExecutorService snapshotter = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "journal-snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicBoolean snapshotRunning = new AtomicBoolean();
+    private volatile boolean closed;
+
+    // Owned by the writer thread
+    private FileChannel channel;
+    private long segment;
+    private long sinceSnapshot; // mutations, not appends
+
+    private FileJournal(Path directory, Database database, int snapshotEvery, long segment) throws IOException {
+        this.directory = directory;
+        this.database = database;
+        this.snapshotEvery = snapshotEvery;
+        this.segment = segment;
+        this.channel = openSegment(segment);
+
+        this.writer = new Thread(this::run, "journal-writer");
+        this.writer.start();
+    }
+
+    // Replay the data directory into the (empty) database, then start journaling in a fresh segment
+    public static FileJournal open(Path directory, int snapshotEvery, Database database) {
+        try {
+            Files.createDirectories(directory);
+            long start = System.nanoTime();
+            long next = recover(directory, database);
+            LOG.info("Recovered {} users, {} messages and {} sessions from {} in {} ms",
+                    database.users().size(), database.messages().size(), database.sessions().size(),
+                    directory, (System.nanoTime() - start) / 1_000_000);
+            return new FileJournal(directory, database, snapshotEvery, next);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open the journal in " + directory, e);
+        }
+    }
+
+    @Override
+    public void appendAll(List<Mutation> mutations) {
+        if (mutations.isEmpty()) {
+            return;
+        }
+        if (closed) {
+            throw new IllegalStateException("Journal is closed");
+        }
+
+        // Serialization happens on the caller thread, the writer only copies bytes
+        ByteArrayOutputStream lines = new ByteArrayOutputStream();
+        try {
+            for (Mutation mutation : mutations) {
+                lines.write(Json.writerFor(Mutation.class).writeValueAsBytes(mutation));
+                lines.write('\n');
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        queue.add(new Pending(lines.toByteArray(), mutations.size(), done));
+        try {
+            done.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw new UncheckedIOException(io);
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        queue.add(STOP);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        snapshotter.shutdown();
+    }
+
+    // ------------------------------------------------- WRITER THREAD ------------------------------------------------
+    private void run() {
+        List<Pending> batch = new ArrayList<>();
+        boolean stop = false;
+
+        while (!stop) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+            stop = batch.remove(STOP);
+
+            try {
+                for (Pending pending : batch) {
+                    ByteBuffer buffer = ByteBuffer.wrap(pending.lines());
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+                // One fsync for the whole batch
+                channel.force(false);
+                batch.forEach(pending -> pending.done().complete(null));
+            } catch (IOException e) {
+                LOG.error("Journal write failed", e);
+                batch.forEach(pending -> pending.done().completeExceptionally(e));
+            }
+
+            for (Pending pending : batch) {
+                sinceSnapshot += pending.mutations();
+            }
+            batch.clear();
+
+            if (sinceSnapshot >= snapshotEvery && snapshotRunning.compareAndSet(false, true)) {
+                rotate();
+            }
+        }
+
+        // Appends that raced with close() are rejected
+        for (Pending pending : queue) {
+            if (pending != STOP) {
+                pending.done().completeExceptionally(new IOException("Journal is closed"));
+            }
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.warn("Cannot close journal segment", e);
+        }
+    }
+
+    // Switch to a new segment and snapshot in the background, the snapshot replaces every older segment
+    private void rotate() {
+        try {
+            channel.close();
+            segment++;
+            channel = openSegment(segment);
+            sinceSnapshot = 0;
+        } catch (IOException e) {
+            LOG.error("Cannot rotate the journal", e);
+            snapshotRunning.set(false);
+            return;
+        }
+
+        long from = segment;
+        snapshotter.execute(() -> {
+            try {
+                writeSnapshot(from);
+            } catch (IOException e) {
+                LOG.error("Snapshot failed", e);
+            } finally {
+                snapshotRunning.set(false);
+            }
+        });
+    }
+
+    private FileChannel openSegment(long number) throws IOException {
+        return FileChannel.open(segmentPath(directory, number),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    // ------------------------------------------------- SNAPSHOTS ----------------------------------------------------
+    private void writeSnapshot(long from) throws IOException {
+        long start = System.nanoTime();
+        Path tmp = directory.resolve(SNAPSHOT + ".tmp");
+
+        BinarySnapshot.write(tmp, database, from);
+
+        Files.move(tmp, directory.resolve(SNAPSHOT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        for (long old : segments(directory)) {
+            if (old < from) {
+                Files.deleteIfExists(segmentPath(directory, old));
+            }
+        }
+        LOG.info("Snapshot written in {} ms", (System.nanoTime() - start) / 1_000_000);
+    }
+
+    // ------------------------------------------------- RECOVERY -----------------------------------------------------
+    // Returns the number of the segment to write next
+    private static long recover(Path directory, Database database) throws IOException {
+        long from = 1;
+        Path snapshot = directory.resolve(SNAPSHOT);
+        if (Files.exists(snapshot)) {
+            from = BinarySnapshot.read(snapshot, database);
+        }
+
+        long next = from;
+        for (long number : segments(directory)) {
+            if (number < from) {
+                // Already covered by the snapshot, the previous run stopped before deleting it
+                Files.deleteIfExists(segmentPath(directory, number));
+                continue;
+            }
+            replay(segmentPath(directory, number), database);
+            next = number + 1;
+        }
+        return next;
+    }
+
+    private static void replay(Path file, Database database) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            while (line != null) {
+                String following = reader.readLine();
+                try {
+                    Json.MAPPER.readValue(line, Mutation.class).applyTo(database);
+                } catch (IOException e) {
+                    // A torn last line is what a crash in the middle of a write leaves behind
+                    if (following != null) {
+                        throw new IOException("Corrupted journal " + file, e);
+                    }
+                    LOG.warn("Ignoring incomplete last record of {}", file);
+                }
+                line = following;
+            }
+        }
+    }
+
+    private static List<Long> segments(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith("journal-") && name.endsWith(".log"))
+                    .map(name -> Long.parseLong(name.substring("journal-".length(), name.length() - ".log".length())))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private static Path segmentPath(Path directory, long number) {
+        return directory.resolve(String.format("journal-%012d.log", number));
+    }
+}
@@ -0,0 +1,22 @@
+package ch.heigvd.persistence;
+
+import java.util.List;
+
+// Durable log of the mutations applied to the Database.
+// Callers apply a mutation to the maps first, then append it: append returns once it is on disk.
+public interface Journal extends AutoCloseable {
+    // Keeps everything in memory only (no data directory configured)
+    Journal NONE = mutations -> {
+    };
+
+    // Append several mutations, waiting once for all of them to be durable
+    void appendAll(List<Mutation> mutations);
+
+    default void append(Mutation mutation) {
+        appendAll(List.of(mutation));
+    }
+
+    @Override
+    default void close() {
+    }
+}
@@ -0,0 +1,59 @@
+package ch.heigvd.persistence;
+
+import ch.heigvd.auth.Session;
+import ch.heigvd.messages.Message;
+import ch.heigvd.users.User;
+
+import com.fasterxml.jackson.annotation.JsonSubTypes;
+import com.fasterxml.jackson.annotation.JsonTypeInfo;
+
+// One change of the application state, as written to the journal.
+// Mutations carry the full new value so replaying them is idempotent.
+@JsonTypeInfo(use = JsonTypeInfo.Id.NAME, property = "type")
+@JsonSubTypes({
+        @JsonSubTypes.Type(value = Mutation.UserSaved.class, name = "userSaved"),
+        @JsonSubTypes.Type(value = Mutation.UserDeleted.class, name = "userDeleted"),
+        @JsonSubTypes.Type(value = Mutation.MessageSaved.class, name = "messageSaved"),
+        @JsonSubTypes.Type(value = Mutation.MessageDeleted.class, name = "messageDeleted"),
+        @JsonSubTypes.Type(value = Mutation.SessionOpened.class, name = "sessionOpened"),
+        @JsonSubTypes.Type(value = Mutation.SessionClosed.class, name = "sessionClosed")
+})
+public sealed interface Mutation {
+    void applyTo(Database database);
+
+    record UserSaved(User user) implements Mutation {
+        public void applyTo(Database database) {
+            database.users().put(user.userId(), user);
+        }
+    }
+
+    record UserDeleted(Integer userId) implements Mutation {
+        public void applyTo(Database database) {
+            database.users().remove(userId);
+        }
+    }
+
+    record MessageSaved(Message message) implements Mutation {
+        public void applyTo(Database database) {
+            database.messages().put(message.msgId(), message);
+        }
+    }
+
+    record MessageDeleted(Integer msgId) implements Mutation {
+        public void applyTo(Database database) {
+            database.messages().remove(msgId);
+        }
+    }
+
+    record SessionOpened(String sessionId, Integer userId, long createdAt) implements Mutation {
+        public void applyTo(Database database) {
+            database.sessions().put(sessionId, new Session(sessionId, userId, createdAt));
+        }
+    }
+
+    record SessionClosed(String sessionId) implements Mutation {
+        public void applyTo(Database database) {
+            database.sessions().remove(sessionId);
+        }
+    }
+}
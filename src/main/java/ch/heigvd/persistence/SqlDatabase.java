@@ -0,0 +1,125 @@
+package ch.heigvd.persistence;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+// Embedded H2 database holding the whole application state, as an alternative to the maps and their journal.
+// Connections come from a bounded pool, and every statement used on a hot path is covered by an index below.
+public class SqlDatabase implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(SqlDatabase.class);
+
+    // Usernames and emails are unique without case: the lower-cased 'key' columns carry the constraint.
+    // Dates are epoch nanoseconds (messages) or millis (sessions), to keep the exact instants of the maps.
+    private static final String[] SCHEMA = {
+            """
+            CREATE TABLE IF NOT EXISTS users (
+                user_id      INT PRIMARY KEY,
+                username     VARCHAR NOT NULL,
+                username_key VARCHAR NOT NULL UNIQUE,
+                email        VARCHAR NOT NULL,
+                email_key    VARCHAR NOT NULL UNIQUE,
+                password     VARCHAR NOT NULL,
+                is_admin     BOOLEAN NOT NULL
+            )""",
+            """
+            CREATE TABLE IF NOT EXISTS messages (
+                msg_id     INT PRIMARY KEY,
+                user_id    INT NOT NULL,
+                created_at BIGINT NOT NULL,
+                edited_at  BIGINT,
+                content    VARCHAR NOT NULL,
+                terms      INT NOT NULL
+            )""",
+            // The feed, unfiltered or of one author, is a range scan on these
+            "CREATE INDEX IF NOT EXISTS messages_timeline ON messages (created_at, msg_id)",
+            "CREATE INDEX IF NOT EXISTS messages_user_timeline ON messages (user_id, created_at, msg_id)",
+            // Inverted index of the full-text search, 'posting' packs the occurrences and the message length
+            """
+            CREATE TABLE IF NOT EXISTS message_terms (
+                term    VARCHAR NOT NULL,
+                msg_id  INT NOT NULL,
+                posting INT NOT NULL,
+                PRIMARY KEY (term, msg_id)
+            )""",
+            "CREATE INDEX IF NOT EXISTS message_terms_msg ON message_terms (msg_id)",
+            """
+            CREATE TABLE IF NOT EXISTS sessions (
+                session_id  VARCHAR PRIMARY KEY,
+                user_id     INT NOT NULL,
+                created_at  BIGINT NOT NULL,
+                last_access BIGINT NOT NULL
+            )""",
+            "CREATE INDEX IF NOT EXISTS sessions_user ON sessions (user_id)",
+    };
+
+    // A unit of work on one connection
+    @FunctionalInterface
+    public interface Work<T> {
+        T run(Connection connection) throws SQLException;
+    }
+
+    private final JdbcConnectionPool pool;
+
+    private SqlDatabase(JdbcConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    // Open (or create) the database and its schema
+    public static SqlDatabase open(String url, int maxConnections) {
+        JdbcConnectionPool pool = JdbcConnectionPool.create(url, "", "");
+        pool.setMaxConnections(maxConnections);
+        SqlDatabase database = new SqlDatabase(pool);
+        database.transaction(connection -> {
+            try (Statement statement = connection.createStatement()) {
+                for (String ddl : SCHEMA) {
+                    statement.execute(ddl);
+                }
+            }
+            return null;
+        });
+        LOG.info("Opened {} with up to {} connections", url, maxConnections);
+        return database;
+    }
+
+    // Run in auto-commit mode: each statement is atomic on its own
+    public <T> T query(Work<T> work) {
+        try (Connection connection = pool.getConnection()) {
+            return work.run(connection);
+        } catch (SQLException e) {
+            throw new StorageException("Database query failed", e);
+        }
+    }
+
+    // Run in one transaction, rolled back when the work fails
+    public <T> T transaction(Work<T> work) {
+        try (Connection connection = pool.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                T result = work.run(connection);
+                connection.commit();
+                return result;
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new StorageException("Database transaction failed", e);
+        }
+    }
+
+    public int activeConnections() {
+        return pool.getActiveConnections();
+    }
+
+    @Override
+    public void close() {
+        pool.dispose();
+    }
+}
@@ -0,0 +1,10 @@
+package ch.heigvd.persistence;
+
+// A database access failed (connection lost, disk full...), answered 500 like any unexpected error
+public class StorageException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public StorageException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
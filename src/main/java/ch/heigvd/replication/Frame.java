@@ -0,0 +1,44 @@
+package ch.heigvd.replication;
+
+import ch.heigvd.persistence.Mutation;
+
+import com.fasterxml.jackson.annotation.JsonSubTypes;
+import com.fasterxml.jackson.annotation.JsonTypeInfo;
+
+// Messages of the replication protocol, one JSON line each over the TCP connection.
+//  follower -> leader : follow, then touch from time to time
+//  leader -> follower : snapshot, entries (seq 0), snapshotEnd   when the follower must start over
+//                       resume                                   when it can continue where it stopped
+//                       then entries in seq order, and heartbeats while nothing changes
+@JsonTypeInfo(use = JsonTypeInfo.Id.NAME, property = "type")
+@JsonSubTypes({
+        @JsonSubTypes.Type(value = Frame.Follow.class, name = "follow"),
+        @JsonSubTypes.Type(value = Frame.Touch.class, name = "touch"),
+        @JsonSubTypes.Type(value = Frame.Snapshot.class, name = "snapshot"),
+        @JsonSubTypes.Type(value = Frame.SnapshotEnd.class, name = "snapshotEnd"),
+        @JsonSubTypes.Type(value = Frame.Resume.class, name = "resume"),
+        @JsonSubTypes.Type(value = Frame.Entry.class, name = "entry"),
+        @JsonSubTypes.Type(value = Frame.Heartbeat.class, name = "heartbeat")
+})
+sealed interface Frame {
+
+    // Sent by the follower on connection: the leader run and the last entry it applied (0 and null when empty)
+    record Follow(String epoch, long after) implements Frame {}
+
+    // A session was used on the follower: its idle timer is refreshed on the leader too
+    record Touch(String sessionId) implements Frame {}
+
+    // Start of a full copy of the state, the entries after it continue from 'seq'
+    record Snapshot(String epoch, long seq) implements Frame {}
+
+    record SnapshotEnd() implements Frame {}
+
+    // The follower is up to date until its 'after', the entries continue from there
+    record Resume(String epoch) implements Frame {}
+
+    // One mutation of the log, seq 0 inside a snapshot
+    record Entry(long seq, Mutation mutation) implements Frame {}
+
+    // Nothing new, last seq of the leader
+    record Heartbeat(long seq) implements Frame {}
+}
@@ -0,0 +1,96 @@
+package ch.heigvd.replication;
+
+import ch.heigvd.auth.InMemorySessionStore;
+import ch.heigvd.auth.Session;
+import ch.heigvd.messages.Message;
+import ch.heigvd.messages.MessagesController;
+import ch.heigvd.persistence.Database;
+import ch.heigvd.persistence.Mutation;
+import ch.heigvd.users.User;
+import ch.heigvd.users.UserStore;
+
+import java.util.function.Consumer;
+
+// State of a follower, changed only by the mutations of the leader. They go through the stores and the
+// MessagesController, so the indexes, the change log, the feed cache and the SSE clients see them as
+// local writes.
+public class Replica {
+    private final Database database;
+    private final UserStore users;
+    private final MessagesController messages;
+    private final InMemorySessionStore sessions;
+
+    // 'sessions' is null with signed sessions: they are valid everywhere and nothing is replicated
+    public Replica(Database database, UserStore users, MessagesController messages, InMemorySessionStore sessions) {
+        this.database = database;
+        this.users = users;
+        this.messages = messages;
+        this.sessions = sessions;
+    }
+
+    // False when the mutation cannot be applied yet: a user whose username or email is still held by
+    // a stale user of a previous run, deleted at the end of the snapshot
+    boolean apply(Mutation mutation) {
+        switch (mutation) {
+            case Mutation.UserSaved saved -> {
+                User current = users.get(saved.user().userId());
+                return current == null ? users.insert(saved.user()) : users.replace(current, saved.user());
+            }
+            case Mutation.UserDeleted deleted -> users.remove(deleted.userId());
+            case Mutation.MessageSaved saved -> messages.replicateSaved(saved.message());
+            case Mutation.MessageDeleted deleted -> messages.replicateDeleted(deleted.msgId());
+            case Mutation.SessionOpened opened -> {
+                if (sessions != null) {
+                    sessions.add(new Session(opened.sessionId(), opened.userId(), opened.createdAt()));
+                }
+            }
+            case Mutation.SessionClosed closed -> {
+                if (sessions != null) {
+                    sessions.remove(closed.sessionId());
+                }
+            }
+        }
+        return true;
+    }
+
+    // This replica's own state, as the mutations that would create it
+    void dump(Consumer<Mutation> out) {
+        dump(database, out);
+    }
+
+    // The whole state as mutations: what a new follower receives first. Users come before their messages
+    // and sessions, the order a follower can apply them in
+    static void dump(Database database, Consumer<Mutation> out) {
+        for (User user : database.users().values()) {
+            out.accept(new Mutation.UserSaved(user));
+        }
+        for (Message message : database.messages().values()) {
+            out.accept(new Mutation.MessageSaved(message));
+        }
+        for (Session session : database.sessions().values()) {
+            out.accept(new Mutation.SessionOpened(session.id(), session.userId(), session.createdAt()));
+        }
+    }
+
+    // Item changed by a mutation, to find what a snapshot no longer has
+    static String key(Mutation mutation) {
+        return switch (mutation) {
+            case Mutation.UserSaved saved -> "user:" + saved.user().userId();
+            case Mutation.UserDeleted deleted -> "user:" + deleted.userId();
+            case Mutation.MessageSaved saved -> "message:" + saved.message().msgId();
+            case Mutation.MessageDeleted deleted -> "message:" + deleted.msgId();
+            case Mutation.SessionOpened opened -> "session:" + opened.sessionId();
+            case Mutation.SessionClosed closed -> "session:" + closed.sessionId();
+        };
+    }
+
+    // The mutation removing what a dumped mutation created
+    static Mutation deletion(Mutation mutation) {
+        return switch (mutation) {
+            case Mutation.UserSaved saved -> new Mutation.UserDeleted(saved.user().userId());
+            case Mutation.MessageSaved saved -> new Mutation.MessageDeleted(saved.message().msgId());
+            case Mutation.SessionOpened opened -> new Mutation.SessionClosed(opened.sessionId());
+            default -> mutation;
+        };
+    }
+}
@@ -0,0 +1,260 @@
+package ch.heigvd.replication;
+
+import ch.heigvd.persistence.Mutation;
+import ch.heigvd.utils.Json;
+
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Keeps the Replica in sync with the leader: connects, applies the snapshot or resumes, then applies the
+// entries in seq order. On any failure it reconnects, resuming from the last applied entry when it can.
+public class ReplicationFollower implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(ReplicationFollower.class);
+
+    // No heartbeat for this long: the leader or the network is gone, reconnect
+    static final int READ_TIMEOUT_MILLIS = 5_000;
+    static final long RETRY_MILLIS = 1_000;
+
+    // A session used here is touched on the leader at most this often (its idle timeout is counted there)
+    static final long TOUCH_EVERY_MILLIS = 60_000;
+    static final int MAX_TOUCHED = 100_000;
+
+    private static final ObjectWriter WRITER = Json.writerFor(Frame.class);
+
+    private final InetSocketAddress leader;
+    private final Replica replica;
+    private final Thread thread;
+    private final ConcurrentMap<String, Long> touched = new ConcurrentHashMap<>();
+
+    // A lock rather than synchronized: waiting virtual threads must not pin their carrier
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition progressed = lock.newCondition();
+    private final ReentrantLock sending = new ReentrantLock();
+
+    // Written by the replication thread only, under 'lock' for 'applied'
+    private String epoch;
+    private long applied;
+    private volatile long leaderSeq;
+    private volatile boolean ready;
+    private volatile OutputStream upstream;
+    private volatile Socket socket;
+    private volatile boolean closed;
+
+    public ReplicationFollower(InetSocketAddress leader, Replica replica) {
+        this.leader = leader;
+        this.replica = replica;
+        this.thread = new Thread(this::run, "replication-follower");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    // True once a first snapshot was applied
+    public boolean isReady() {
+        return ready;
+    }
+
+    // Entries of the leader not applied here yet (as of its last frame)
+    public long lag() {
+        return Math.max(0, leaderSeq - appliedSeq());
+    }
+
+    // Wait until the entry 'seq' of the current leader run is applied here, false after the timeout
+    public boolean awaitApplied(long seq, Duration timeout) {
+        lock.lock();
+        try {
+            long remaining = timeout.toNanos();
+            while (applied < seq) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = progressed.awaitNanos(remaining);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // A session was used on this follower: refresh its idle timer on the leader, coarsely
+    public void touch(String sessionId) {
+        long now = System.currentTimeMillis();
+        Long last = touched.get(sessionId);
+        if (last != null && now - last < TOUCH_EVERY_MILLIS) {
+            return;
+        }
+        // A simple bound: start over once full, at worst some sessions are touched again early
+        if (touched.size() >= MAX_TOUCHED) {
+            touched.clear();
+        }
+        touched.put(sessionId, now);
+        send(new Frame.Touch(sessionId));
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+        thread.interrupt();
+    }
+
+    private long appliedSeq() {
+        lock.lock();
+        try {
+            return applied;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void run() {
+        while (!closed) {
+            try (Socket connection = new Socket()) {
+                socket = connection;
+                connection.connect(leader, READ_TIMEOUT_MILLIS);
+                connection.setSoTimeout(READ_TIMEOUT_MILLIS);
+                connection.setTcpNoDelay(true);
+                upstream = new BufferedOutputStream(connection.getOutputStream());
+                send(new Frame.Follow(epoch, appliedSeq()));
+
+                try (MappingIterator<Frame> in = Json.MAPPER.readerFor(Frame.class).readValues(connection.getInputStream())) {
+                    follow(in);
+                }
+            } catch (IOException | RuntimeException e) {
+                if (!closed) {
+                    LOG.warn("Replication from {} interrupted: {}", leader, e.toString());
+                }
+            } finally {
+                upstream = null;
+            }
+
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void follow(MappingIterator<Frame> in) throws IOException {
+        while (in.hasNextValue()) {
+            switch (in.nextValue()) {
+                case Frame.Snapshot snapshot -> {
+                    long start = System.nanoTime();
+                    int count = applySnapshot(in);
+                    epoch = snapshot.epoch();
+                    advance(snapshot.seq());
+                    ready = true;
+                    LOG.info("Snapshot of {} items from {} applied in {} ms, at seq {}",
+                            count, leader, (System.nanoTime() - start) / 1_000_000, snapshot.seq());
+                }
+                case Frame.Resume resume -> LOG.info("Resuming replication from {} at seq {}", leader, appliedSeq());
+                case Frame.Entry entry -> {
+                    // Refused: this copy diverged from the leader's (e.g. a username still held here by a user
+                    // the leader no longer has). Dropped epoch: the next connection starts over from a snapshot
+                    if (!replica.apply(entry.mutation())) {
+                        epoch = null;
+                        throw new IOException("Cannot apply the entry " + entry.seq() + ", resynchronizing");
+                    }
+                    advance(entry.seq());
+                }
+                case Frame.Heartbeat heartbeat -> leaderSeq = heartbeat.seq();
+                default -> throw new IOException("Unexpected frame from the leader");
+            }
+        }
+        throw new IOException("Connection closed by the leader");
+    }
+
+    // Apply the items of a snapshot, then remove whatever this replica has that the snapshot does not
+    private int applySnapshot(MappingIterator<Frame> in) throws IOException {
+        Set<String> keys = new HashSet<>();
+        List<Mutation> retries = new ArrayList<>();
+        int count = 0;
+
+        while (in.hasNextValue()) {
+            Frame frame = in.nextValue();
+            if (frame instanceof Frame.SnapshotEnd) {
+                List<Mutation> stale = new ArrayList<>();
+                replica.dump(mutation -> {
+                    if (!keys.contains(Replica.key(mutation))) {
+                        stale.add(Replica.deletion(mutation));
+                    }
+                });
+                stale.forEach(replica::apply);
+                for (Mutation retry : retries) {
+                    if (!replica.apply(retry)) {
+                        LOG.error("Cannot apply {} from the snapshot", retry);
+                    }
+                }
+                return count;
+            }
+            if (!(frame instanceof Frame.Entry entry)) {
+                throw new IOException("Unexpected frame in a snapshot: " + frame);
+            }
+            keys.add(Replica.key(entry.mutation()));
+            if (!replica.apply(entry.mutation())) {
+                retries.add(entry.mutation());
+            }
+            count++;
+        }
+        throw new IOException("Snapshot interrupted");
+    }
+
+    private void advance(long seq) {
+        lock.lock();
+        try {
+            applied = seq;
+            progressed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (seq > leaderSeq) {
+            leaderSeq = seq;
+        }
+    }
+
+    private void send(Frame frame) {
+        OutputStream out = upstream;
+        if (out == null) {
+            return;
+        }
+        // Frames are small, each one is written whole
+        sending.lock();
+        try {
+            out.write(WRITER.writeValueAsBytes(frame));
+            out.write('\n');
+            out.flush();
+        } catch (IOException e) {
+            // The replication thread sees the broken connection and reconnects
+        } finally {
+            sending.unlock();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package ch.heigvd.replication;
+
+import ch.heigvd.auth.SessionStore;
+import ch.heigvd.persistence.Database;
+import ch.heigvd.utils.Json;
+
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Serves the ReplicationLog to the followers, one connection and one thread per follower.
+// A follower that can resume gets the entries it missed, any other one (new, or behind the backlog, or
+// from a previous leader run) first gets a snapshot of the whole state. The snapshot is fuzzy like the ones
+// of the FileJournal: it starts at the current seq, so whatever changes during the dump is sent again after it.
+public class ReplicationLeader implements AutoCloseable {
+    private static final Logger LOG = LoggerFactory.getLogger(ReplicationLeader.class);
+
+    static final int MAX_BATCH = 1024;
+    static final long HEARTBEAT_MILLIS = 1_000;
+
+    private static final ObjectWriter WRITER = Json.writerFor(Frame.class);
+
+    private final ReplicationLog log;
+    private final Database database;
+    private final SessionStore sessions;
+    private final ServerSocket server;
+    private final Set<Socket> followers = ConcurrentHashMap.newKeySet();
+
+    // Identifies this run: the seqs restart at each start, a follower of a previous run must start over
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+
+    public ReplicationLeader(ReplicationLog log, Database database, SessionStore sessions, int port) {
+        this.log = log;
+        this.database = database;
+        this.sessions = sessions;
+        try {
+            this.server = new ServerSocket();
+            this.server.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot listen for followers on port " + port, e);
+        }
+
+        Thread acceptor = new Thread(this::accept, "replication-leader");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        LOG.info("Replication leader listening on port {}", port);
+    }
+
+    public int followers() {
+        return followers.size();
+    }
+
+    // The port the followers connect to (the one given, or the one chosen for port 0)
+    int port() {
+        return server.getLocalPort();
+    }
+
+    @Override
+    public void close() {
+        try {
+            server.close();
+        } catch (IOException e) {
+            LOG.warn("Cannot close the replication port", e);
+        }
+        for (Socket follower : followers) {
+            closeQuietly(follower);
+        }
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                Thread thread = new Thread(() -> serve(socket), "replication-" + socket.getRemoteSocketAddress());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (!server.isClosed()) {
+                    LOG.error("Cannot accept a follower", e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        followers.add(socket);
+        try (socket;
+             MappingIterator<Frame> in = Json.MAPPER.readerFor(Frame.class).readValues(socket.getInputStream());
+             OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024)) {
+
+            if (!in.hasNextValue() || !(in.nextValue() instanceof Frame.Follow follow)) {
+                LOG.warn("Unexpected first frame from {}", socket.getRemoteSocketAddress());
+                return;
+            }
+            long seq = start(follow, out);
+            LOG.info("Follower {} connected, streaming from seq {}", socket.getRemoteSocketAddress(), seq);
+
+            // The follower's frames (session touches) are read on their own thread
+            Thread reader = new Thread(() -> readTouches(in), "replication-touches-" + socket.getRemoteSocketAddress());
+            reader.setDaemon(true);
+            reader.start();
+
+            while (!socket.isClosed()) {
+                List<Frame.Entry> entries = log.after(seq, MAX_BATCH, HEARTBEAT_MILLIS);
+                if (entries == null) {
+                    // Too slow: the follower reconnects and gets a snapshot
+                    LOG.warn("Follower {} fell behind the backlog", socket.getRemoteSocketAddress());
+                    return;
+                }
+                if (entries.isEmpty()) {
+                    write(out, new Frame.Heartbeat(seq));
+                } else {
+                    for (Frame.Entry entry : entries) {
+                        write(out, entry);
+                    }
+                    seq = entries.get(entries.size() - 1).seq();
+                }
+                out.flush();
+            }
+        } catch (SocketException e) {
+            LOG.info("Follower {} disconnected", socket.getRemoteSocketAddress());
+        } catch (IOException | UncheckedIOException e) {
+            LOG.warn("Replication to {} failed", socket.getRemoteSocketAddress(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            followers.remove(socket);
+        }
+    }
+
+    // Resume or snapshot, returns the seq the entries continue from
+    private long start(Frame.Follow follow, OutputStream out) throws IOException {
+        if (epoch.equals(follow.epoch()) && log.canResume(follow.after())) {
+            write(out, new Frame.Resume(epoch));
+            return follow.after();
+        }
+
+        long seq = log.lastSeq();
+        write(out, new Frame.Snapshot(epoch, seq));
+        Replica.dump(database, mutation -> {
+            try {
+                write(out, new Frame.Entry(0, mutation));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        write(out, new Frame.SnapshotEnd());
+        out.flush();
+        return seq;
+    }
+
+    private void readTouches(MappingIterator<Frame> in) {
+        try {
+            while (in.hasNextValue()) {
+                if (in.nextValue() instanceof Frame.Touch touch) {
+                    // Resolving the session refreshes its idle timer
+                    sessions.resolve(touch.sessionId());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Connection closed, the streaming side notices it too
+        }
+    }
+
+    private static void write(OutputStream out, Frame frame) throws IOException {
+        out.write(WRITER.writeValueAsBytes(frame));
+        out.write('\n');
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package ch.heigvd.replication;
+
+import ch.heigvd.persistence.Journal;
+import ch.heigvd.persistence.Mutation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Journal of the leader: the mutations are made durable by the wrapped journal, then numbered and kept
+// in a bounded backlog that the followers read from. A follower disconnected for a short while resumes
+// from the backlog, one that fell further behind gets a snapshot again.
+public class ReplicationLog implements Journal {
+    private final Journal journal;
+
+    // A lock rather than synchronized: waiting virtual threads must not pin their carrier
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+
+    // Guarded by 'lock'. Ring of the last entries: seq s is at (s - 1) % length while s > last - length
+    private final Frame.Entry[] backlog;
+    private long last;
+
+    public ReplicationLog(Journal journal, int capacity) {
+        this.journal = journal;
+        this.backlog = new Frame.Entry[capacity];
+    }
+
+    // Only durable mutations are sent: a follower never sees a change the leader could lose in a crash
+    @Override
+    public void appendAll(List<Mutation> mutations) {
+        if (mutations.isEmpty()) {
+            return;
+        }
+        journal.appendAll(mutations);
+
+        lock.lock();
+        try {
+            for (Mutation mutation : mutations) {
+                last++;
+                backlog[(int) ((last - 1) % backlog.length)] = new Frame.Entry(last, mutation);
+            }
+            appended.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        journal.close();
+    }
+
+    public long lastSeq() {
+        lock.lock();
+        try {
+            return last;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // True when the entries after 'seq' are all still in the backlog
+    boolean canResume(long seq) {
+        lock.lock();
+        try {
+            return seq >= last - backlog.length && seq <= last;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Up to 'max' entries after 'seq', waiting up to 'timeout' millis for one. Empty when nothing came,
+    // null when some of them already left the backlog
+    List<Frame.Entry> after(long seq, int max, long timeout) throws InterruptedException {
+        lock.lock();
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+            while (last <= seq) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return List.of();
+                }
+                appended.awaitNanos(remaining);
+            }
+            if (seq < last - backlog.length) {
+                return null;
+            }
+            List<Frame.Entry> entries = new ArrayList<>((int) Math.min(max, last - seq));
+            for (long s = seq + 1; s <= last && entries.size() < max; s++) {
+                entries.add(backlog[(int) ((s - 1) % backlog.length)]);
+            }
+            return entries;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
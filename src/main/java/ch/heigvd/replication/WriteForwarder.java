@@ -0,0 +1,86 @@
+package ch.heigvd.replication;
+
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+import io.javalin.http.ServiceUnavailableResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+
+// Handler of the write routes on a follower: the request is sent as is to the leader, and its response
+// is returned once this follower has applied the write (the leader gives its seq in SEQ_HEADER), so a
+// client reading from here right after a write sees it.
+public class WriteForwarder {
+    public static final String SEQ_HEADER = "X-Replication-Seq";
+
+    private static final Logger LOG = LoggerFactory.getLogger(WriteForwarder.class);
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration APPLY_TIMEOUT = Duration.ofSeconds(2);
+
+    // Request headers the leader needs, response headers the client needs
+    private static final List<String> REQUEST_HEADERS = List.of(Header.CONTENT_TYPE, Header.COOKIE, Header.ACCEPT);
+    private static final List<String> RESPONSE_HEADERS = List.of(Header.CONTENT_TYPE, Header.SET_COOKIE, Header.RETRY_AFTER);
+
+    private final URI leader;
+    private final ReplicationFollower follower;
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(TIMEOUT)
+            .build();
+
+    public WriteForwarder(URI leader, ReplicationFollower follower) {
+        this.leader = leader;
+        this.follower = follower;
+    }
+
+    public void handle(Context ctx) {
+        String target = ctx.path() + (ctx.queryString() != null ? "?" + ctx.queryString() : "");
+        HttpRequest.Builder request = HttpRequest.newBuilder(leader.resolve(target))
+                .timeout(TIMEOUT)
+                .method(ctx.method().name(), HttpRequest.BodyPublishers.ofByteArray(ctx.bodyAsBytes()));
+        for (String name : REQUEST_HEADERS) {
+            String value = ctx.header(name);
+            if (value != null) {
+                request.header(name, value);
+            }
+        }
+        // The leader sees the client, not this follower (with JITSUSMON_TRUST_PROXY, for its rate limits)
+        String forwarded = ctx.header("X-Forwarded-For");
+        request.header("X-Forwarded-For", (forwarded != null ? forwarded + ", " : "") + ctx.ip());
+
+        HttpResponse<byte[]> response;
+        try {
+            response = client.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+        } catch (IOException e) {
+            LOG.warn("Cannot forward {} {} to the leader: {}", ctx.method(), target, e.toString());
+            throw new ServiceUnavailableResponse("Leader unavailable, retry later");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServiceUnavailableResponse("Leader unavailable, retry later");
+        }
+
+        // Read-your-writes: wait (briefly) for the write to come back through the replication stream
+        response.headers().firstValueAsLong(SEQ_HEADER)
+                .ifPresent(seq -> follower.awaitApplied(seq, APPLY_TIMEOUT));
+
+        ctx.status(response.statusCode());
+        for (String name : RESPONSE_HEADERS) {
+            for (String value : response.headers().allValues(name)) {
+                if (name.equals(Header.CONTENT_TYPE)) {
+                    ctx.contentType(value);
+                } else {
+                    ctx.res().addHeader(name, value);
+                }
+            }
+        }
+        ctx.result(response.body());
+    }
+}
@@ -0,0 +1,108 @@
+package ch.heigvd.users;
+
+import ch.heigvd.persistence.Journal;
+import ch.heigvd.persistence.Mutation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Users kept in a map of this JVM (and its journal), with the UserIndex for the lookups by name
+public class InMemoryUserStore implements UserStore {
+    private final ConcurrentMap<Integer, User> users;
+    private final UserIndex index;
+    private final Journal journal;
+    private final AtomicInteger nextId = new AtomicInteger(1);
+
+    public InMemoryUserStore(ConcurrentMap<Integer, User> users, Journal journal) {
+        this.users = users;
+        this.index = new UserIndex(users);
+        this.journal = journal;
+
+        // Continue numbering after the users already present (recovered from disk)
+        for (Integer userId : users.keySet()) {
+            nextId.accumulateAndGet(userId + 1, Math::max);
+        }
+    }
+
+    @Override
+    public Integer nextId() {
+        return nextId.getAndIncrement();
+    }
+
+    @Override
+    public User get(Integer userId) {
+        return users.get(userId);
+    }
+
+    @Override
+    public User findByUsername(String username) {
+        return index.findByUsername(username);
+    }
+
+    @Override
+    public User findByEmail(String email) {
+        return index.findByEmail(email);
+    }
+
+    @Override
+    public String usernameOf(Integer userId) {
+        return index.usernameOf(userId);
+    }
+
+    // Reserving the username and email is atomic, two concurrent signups cannot both succeed
+    @Override
+    public boolean insert(User user) {
+        if (!index.reserve(user)) {
+            return false;
+        }
+        users.put(user.userId(), user);
+        journal.append(new Mutation.UserSaved(user));
+        return true;
+    }
+
+    @Override
+    public boolean replace(User current, User updated) {
+        if (!index.changeEmail(current.userId(), current.email(), updated.email())) {
+            return false;
+        }
+        if (!users.replace(current.userId(), current, updated)) {
+            // Changed meanwhile: give the new email back
+            index.changeEmail(current.userId(), updated.email(), current.email());
+            return false;
+        }
+        journal.append(new Mutation.UserSaved(updated));
+        return true;
+    }
+
+    @Override
+    public User remove(Integer userId) {
+        User removed = users.remove(userId);
+        if (removed != null) {
+            index.release(removed);
+            journal.append(new Mutation.UserDeleted(userId));
+        }
+        return removed;
+    }
+
+    @Override
+    public List<User> page(Integer after, int limit) {
+        List<User> page = new ArrayList<>();
+        for (Integer id : index.idsAfter(after)) {
+            if (page.size() == limit) {
+                break;
+            }
+            User user = users.get(id);
+            if (user != null) {
+                page.add(user);
+            }
+        }
+        return page;
+    }
+
+    @Override
+    public int size() {
+        return users.size();
+    }
+}
@@ -0,0 +1,185 @@
+package ch.heigvd.users;
+
+import ch.heigvd.persistence.SqlDatabase;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Users in the 'users' table. The unique constraints on the lower-cased username and email replace
+// the reservations of the UserIndex, and updates compare the whole row (no lost update without locks).
+public class JdbcUserStore implements UserStore {
+    // Author names are read for every message served: kept for the most recent users, they never change
+    static final int MAX_CACHED_NAMES = 100_000;
+
+    private static final String COLUMNS = "user_id, username, email, password, is_admin";
+
+    private final SqlDatabase database;
+    private final ConcurrentMap<Integer, String> names = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId;
+
+    public JdbcUserStore(SqlDatabase database) {
+        this.database = database;
+        this.nextId = new AtomicInteger(database.query(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement("SELECT MAX(user_id) FROM users");
+                 ResultSet rows = statement.executeQuery()) {
+                rows.next();
+                return rows.getInt(1) + 1;
+            }
+        }));
+    }
+
+    @Override
+    public Integer nextId() {
+        return nextId.getAndIncrement();
+    }
+
+    @Override
+    public User get(Integer userId) {
+        return findOne("SELECT " + COLUMNS + " FROM users WHERE user_id = ?", userId);
+    }
+
+    @Override
+    public User findByUsername(String username) {
+        return findOne("SELECT " + COLUMNS + " FROM users WHERE username_key = ?", UserIndex.normalize(username));
+    }
+
+    @Override
+    public User findByEmail(String email) {
+        return findOne("SELECT " + COLUMNS + " FROM users WHERE email_key = ?", UserIndex.normalize(email));
+    }
+
+    @Override
+    public String usernameOf(Integer userId) {
+        String name = names.get(userId);
+        if (name != null) {
+            return name;
+        }
+        User user = get(userId);
+        if (user == null) {
+            return null;
+        }
+        // A simple bound: start over once full, the names are reloaded one query each
+        if (names.size() >= MAX_CACHED_NAMES) {
+            names.clear();
+        }
+        names.put(userId, user.username());
+        return user.username();
+    }
+
+    @Override
+    public boolean insert(User user) {
+        return database.transaction(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "INSERT INTO users (user_id, username, username_key, email, email_key, password, is_admin) "
+                            + "VALUES (?, ?, ?, ?, ?, ?, ?)")) {
+                statement.setInt(1, user.userId());
+                statement.setString(2, user.username());
+                statement.setString(3, UserIndex.normalize(user.username()));
+                statement.setString(4, user.email());
+                statement.setString(5, UserIndex.normalize(user.email()));
+                statement.setString(6, user.password());
+                statement.setBoolean(7, Boolean.TRUE.equals(user.isAdmin()));
+                statement.executeUpdate();
+                return true;
+            } catch (SQLIntegrityConstraintViolationException e) {
+                // Username or email taken
+                return false;
+            }
+        });
+    }
+
+    @Override
+    public boolean replace(User current, User updated) {
+        return database.transaction(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "UPDATE users SET email = ?, email_key = ?, password = ? "
+                            + "WHERE user_id = ? AND email = ? AND password = ?")) {
+                statement.setString(1, updated.email());
+                statement.setString(2, UserIndex.normalize(updated.email()));
+                statement.setString(3, updated.password());
+                statement.setInt(4, current.userId());
+                statement.setString(5, current.email());
+                statement.setString(6, current.password());
+                return statement.executeUpdate() == 1;
+            } catch (SQLIntegrityConstraintViolationException e) {
+                // New email taken
+                return false;
+            }
+        });
+    }
+
+    @Override
+    public User remove(Integer userId) {
+        User removed = database.transaction(connection -> {
+            User user = findOne(connection, "SELECT " + COLUMNS + " FROM users WHERE user_id = ? FOR UPDATE", userId);
+            if (user != null) {
+                try (PreparedStatement statement = connection.prepareStatement("DELETE FROM users WHERE user_id = ?")) {
+                    statement.setInt(1, userId);
+                    statement.executeUpdate();
+                }
+            }
+            return user;
+        });
+        names.remove(userId);
+        return removed;
+    }
+
+    @Override
+    public List<User> page(Integer after, int limit) {
+        return database.query(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT " + COLUMNS + " FROM users WHERE user_id > ? ORDER BY user_id LIMIT ?")) {
+                statement.setInt(1, after != null ? after : Integer.MIN_VALUE);
+                statement.setInt(2, limit);
+                List<User> page = new ArrayList<>();
+                try (ResultSet rows = statement.executeQuery()) {
+                    while (rows.next()) {
+                        page.add(toUser(rows));
+                    }
+                }
+                return page;
+            }
+        });
+    }
+
+    @Override
+    public int size() {
+        return database.query(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement("SELECT COUNT(*) FROM users");
+                 ResultSet rows = statement.executeQuery()) {
+                rows.next();
+                return rows.getInt(1);
+            }
+        });
+    }
+
+    private User findOne(String sql, Object key) {
+        return database.query(connection -> findOne(connection, sql, key));
+    }
+
+    private static User findOne(Connection connection, String sql, Object key) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setObject(1, key);
+            try (ResultSet rows = statement.executeQuery()) {
+                return rows.next() ? toUser(rows) : null;
+            }
+        }
+    }
+
+    private static User toUser(ResultSet rows) throws SQLException {
+        return new User(
+                rows.getInt("user_id"),
+                rows.getString("username"),
+                rows.getString("email"),
+                rows.getString("password"),
+                rows.getBoolean("is_admin"));
+    }
+}
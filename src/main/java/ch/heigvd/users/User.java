@@ -1,7 +1,6 @@
 package ch.heigvd.users;
 
-import java.util.HashMap;
-import java.util.Map;
+import com.fasterxml.jackson.annotation.JsonInclude;
 
 public record User(
         Integer userId,
@@ -10,41 +9,37 @@ public record User(
         String password,
         Boolean isAdmin
 ) {
-    public Map<String, Object> toCreatedMap() {
-        Map<String, Object> m = new HashMap<>();
-        m.put("userId", userId);
-        m.put("username", username);
-        m.put("email", email);
-        return m;
+    // Response views, field order follows api/API.md
+    public record CreatedView(Integer userId, String username, String email) {}
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public record EditedView(Integer userId, String username, String email, String password) {}
+
+    public record ProfileView(Integer userId, String username, String email, Boolean isAdmin, int messageCount) {}
+
+    public record ListView(Integer userId, String username) {}
+
+    public CreatedView toCreatedView() {
+        return new CreatedView(userId, username, email);
     }
 
-    public Map<String, Object> toEditedMap(Boolean[] hasFieldsToUpdate) {
-        Map<String, Object> m = new HashMap<>();
-        m.put("userId", userId);
-        m.put("username", username);
+    public EditedView toEditedView(Boolean[] hasFieldsToUpdate) {
+        String editedEmail = null;
+        String editedPassword = null;
         if (hasFieldsToUpdate != null && hasFieldsToUpdate.length > 0 && Boolean.TRUE.equals(hasFieldsToUpdate[0])) {
-            m.put("email", email);
+            editedEmail = email;
         }
         if (hasFieldsToUpdate != null && hasFieldsToUpdate.length > 1 && Boolean.TRUE.equals(hasFieldsToUpdate[1])) {
-            m.put("password", "password has been updated");
+            editedPassword = "password has been updated";
         }
-        return m;
+        return new EditedView(userId, username, editedEmail, editedPassword);
     }
 
-    public Map<String, Object> toProfileMap(int messageCount) {
-        Map<String, Object> m = new HashMap<>();
-        m.put("userId", userId);
-        m.put("username", username);
-        m.put("email", email);
-        m.put("isAdmin", isAdmin);
-        m.put("messageCount", messageCount);
-        return m;
+    public ProfileView toProfileView(int messageCount) {
+        return new ProfileView(userId, username, email, isAdmin, messageCount);
     }
 
-    public Map<String, Object> toListMap() {
-        Map<String, Object> m = new HashMap<>();
-        m.put("userId", userId);
-        m.put("username", username);
-        return m;
+    public ListView toListView() {
+        return new ListView(userId, username);
     }
 }
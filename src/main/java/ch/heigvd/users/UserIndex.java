@@ -0,0 +1,93 @@
+package ch.heigvd.users;
+
+import java.util.Collection;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+// Case-insensitive username and email lookups over the users map.
+// The index also owns the uniqueness of both fields: a name is only usable once reserved here.
+class UserIndex {
+    private final ConcurrentMap<Integer, User> users;
+    private final ConcurrentMap<String, Integer> byUsername = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Integer> byEmail = new ConcurrentHashMap<>();
+
+    // userId -> username projection, for the places that only need the author name of a message
+    private final ConcurrentMap<Integer, String> names = new ConcurrentHashMap<>();
+
+    // Known user IDs in ascending order, used to paginate the user list
+    private final ConcurrentSkipListSet<Integer> ids = new ConcurrentSkipListSet<>();
+
+    public UserIndex(ConcurrentMap<Integer, User> users) {
+        this.users = users;
+
+        // Index the users already present (recovered from disk, admin)
+        users.values().parallelStream().forEach(this::reserve);
+    }
+
+    // Same folding as String.equalsIgnoreCase, so lookups behave like the old scans
+    static String normalize(String value) {
+        return value.toUpperCase(Locale.ROOT).toLowerCase(Locale.ROOT);
+    }
+
+    // Atomically claim the username and email of the user, false if one of them is already taken
+    public boolean reserve(User user) {
+        String username = normalize(user.username());
+        String email = normalize(user.email());
+
+        if (byUsername.putIfAbsent(username, user.userId()) != null) {
+            return false;
+        }
+        if (byEmail.putIfAbsent(email, user.userId()) != null) {
+            byUsername.remove(username, user.userId());
+            return false;
+        }
+        names.put(user.userId(), user.username());
+        ids.add(user.userId());
+        return true;
+    }
+
+    // Move the user to a new email, false if another user already holds it
+    public boolean changeEmail(Integer userId, String oldEmail, String newEmail) {
+        String oldKey = normalize(oldEmail);
+        String newKey = normalize(newEmail);
+        if (oldKey.equals(newKey)) {
+            return true;
+        }
+
+        Integer owner = byEmail.putIfAbsent(newKey, userId);
+        if (owner != null && !owner.equals(userId)) {
+            return false;
+        }
+        byEmail.remove(oldKey, userId);
+        return true;
+    }
+
+    public void release(User user) {
+        ids.remove(user.userId());
+        names.remove(user.userId());
+        byUsername.remove(normalize(user.username()), user.userId());
+        byEmail.remove(normalize(user.email()), user.userId());
+    }
+
+    // User IDs strictly greater than 'after' (all of them when null), in ascending order
+    public Collection<Integer> idsAfter(Integer after) {
+        return after != null ? ids.tailSet(after, false) : ids;
+    }
+
+    // Username of an existing user, null once deleted
+    public String usernameOf(Integer userId) {
+        return names.get(userId);
+    }
+
+    public User findByUsername(String username) {
+        Integer userId = byUsername.get(normalize(username));
+        return userId != null ? users.get(userId) : null;
+    }
+
+    public User findByEmail(String email) {
+        Integer userId = byEmail.get(normalize(email));
+        return userId != null ? users.get(userId) : null;
+    }
+}
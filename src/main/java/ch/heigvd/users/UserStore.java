@@ -0,0 +1,35 @@
+package ch.heigvd.users;
+
+import java.util.List;
+
+// Registered users. Usernames and emails are unique, compared without case.
+// Implementations make every change durable themselves (journal, database).
+public interface UserStore {
+
+    // ID for a new user, never handed out twice
+    Integer nextId();
+
+    User get(Integer userId);
+
+    User findByUsername(String username);
+
+    User findByEmail(String email);
+
+    // Username of an existing user, null once deleted
+    String usernameOf(Integer userId);
+
+    // Store a new user, false when its username or email is already taken
+    boolean insert(User user);
+
+    // Replace 'current' by 'updated' (same user), false when the user changed or was deleted meanwhile,
+    // or when the new email is already taken
+    boolean replace(User current, User updated);
+
+    // Remove a user and return it, null when unknown
+    User remove(Integer userId);
+
+    // Users with an ID strictly greater than 'after' (from the first when null), in ascending order
+    List<User> page(Integer after, int limit);
+
+    int size();
+}
@@ -1,28 +1,31 @@
 package ch.heigvd.users;
 
-import ch.heigvd.messages.Message;
-
+import ch.heigvd.auth.PasswordHasher;
+import ch.heigvd.auth.SessionFilter;
+import ch.heigvd.auth.SessionStore;
 import ch.heigvd.messages.MessagesController;
+import ch.heigvd.utils.Json;
+import ch.heigvd.utils.Pagination;
 import io.javalin.http.*;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.CompletableFuture;
 
 public class UsersController {
-    private final ConcurrentMap<Integer, User> users;
-    private final ConcurrentMap<String, Integer> cookies;
+    private final UserStore users;
+    private final SessionStore sessions;
     private final MessagesController messagesController;
+    private final PasswordHasher passwords;
 
-    private final AtomicInteger uniqueId = new AtomicInteger(1);
-
-    public UsersController(ConcurrentMap<Integer, User> users,
-                           ConcurrentMap<String, Integer> cookies,
-                           MessagesController messagesController) {
+    public UsersController(UserStore users,
+                           SessionStore sessions,
+                           MessagesController messagesController,
+                           PasswordHasher passwords) {
         this.users = users;
-        this.cookies = cookies;
+        this.sessions = sessions;
         this.messagesController = messagesController;
+        this.passwords = passwords;
     }
 
     public void create(Context ctx) {
@@ -53,34 +56,33 @@ public class UsersController {
                         .check(obj -> obj.password() != null, "Missing password")
                         .get();
 
-        // ------------------------------------------------- CHECK CONFLICTS -----------------------------------------
-        for (User user : users.values()) {
-            if (req.email().equalsIgnoreCase(user.email()) ||
-            req.username().equalsIgnoreCase(user.username())) {
+        // -------------------------------------------------- CREATE USER --------------------------------------------
+        // Hashed on the password pool before taking an ID, the request thread is released meanwhile
+        // (a saturated pool rejects the request with 503)
+        ctx.future(() -> passwords.hashAsync(req.password()).thenAccept(passwordHash -> {
+            User newUser =
+                    new User(
+                            users.nextId(),
+                            req.username(),
+                            req.email(),
+                            passwordHash,
+                            false);
+
+            // --------------------------------------------- CHECK CONFLICTS -----------------------------------------
+            // The store checks both fields atomically, two concurrent signups cannot both succeed
+            if (!users.insert(newUser)) {
                 throw new ConflictResponse();
             }
-        }
 
-        // -------------------------------------------------- CREATE USER --------------------------------------------
-        User newUser =
-                new User(
-                        uniqueId.getAndIncrement(),
-                        req.username(),
-                        req.email(),
-                        req.password(),
-                        false);
-
-        users.put(newUser.userId(), newUser);
-
-        // -------------------------------------------------- RESPONSE -----------------------------------------------
-        ctx.status(HttpStatus.CREATED);
-        ctx.json(newUser.toCreatedMap());
+            // ---------------------------------------------- RESPONSE -----------------------------------------------
+            ctx.status(HttpStatus.CREATED);
+            Json.write(ctx, newUser.toCreatedView());
+        }));
     }
 
     public void update(Context ctx) {
         // ------------------------------------------------ COOKIE VALIDATION ----------------------------------------
-        String session = verifySessionId(ctx.cookie("session_id"));
-        Integer userId = getUserIdFromSession(session);
+        Integer userId = SessionFilter.userId(ctx);
 
         // ------------------------------------------------ PATH PARAM VALIDATION ------------------------------------
         Integer pathUserId = ctx.pathParamAsClass("userId", Integer.class).get();
@@ -88,7 +90,8 @@ public class UsersController {
             throw new ForbiddenResponse("Forbidden: You can only update your own user");
         }
 
-        if (!users.containsKey(userId)) {
+        User existingUser = users.get(userId);
+        if (existingUser == null) {
             throw new NotFoundResponse();
         }
 
@@ -98,17 +101,18 @@ public class UsersController {
             throw new BadRequestResponse("Request body is missing or empty");
         }
 
-        // Check for allowed fields
+        // Check for allowed fields, a present field must be a string (null does not clear it)
         List<String> allowedFields = List.of("email", "password");
-        for (String key : body.keySet()) {
-            if (!allowedFields.contains(key)) {
-                throw new BadRequestResponse("Unexpected field: " + key);
+        for (Map.Entry<String, Object> field : body.entrySet()) {
+            if (!allowedFields.contains(field.getKey())) {
+                throw new BadRequestResponse("Unexpected field: " + field.getKey());
+            }
+            if (!(field.getValue() instanceof String)) {
+                throw new BadRequestResponse("Invalid " + field.getKey());
             }
         }
 
         // -------------------------------------------------- UPDATE USER --------------------------------------------
-        User existingUser = users.get(userId);
-
         Boolean[] hasFieldsToUpdate;
         hasFieldsToUpdate = new Boolean[] {
             body.containsKey("email"),
@@ -116,28 +120,31 @@ public class UsersController {
         };
 
         String newEmail = hasFieldsToUpdate[0] ? (String) body.get("email") : existingUser.email();
-        String newPassword = hasFieldsToUpdate[1] ? (String) body.get("password") : existingUser.password();
-
-        // Check for email conflict
-        for (User user : users.values()) {
-            if (!existingUser.userId().equals(user.userId()) && newEmail.equalsIgnoreCase(user.email())) {
-                throw new ConflictResponse("Conflict: Email already in use");
-            }
-        }
-
-        User updateUser =
-                new User(
-                        existingUser.userId(),
-                        existingUser.username(),
-                        newEmail,
-                        newPassword,
-                        existingUser.isAdmin());
 
-        users.replace(userId, updateUser);
-
-        // -------------------------------------------------- RESPONSE -----------------------------------------------
-        ctx.status(HttpStatus.OK);
-        ctx.json(updateUser.toEditedMap(hasFieldsToUpdate));
+        // A new password is hashed on the password pool, the request thread is released meanwhile
+        ctx.future(() -> {
+            CompletableFuture<String> newPassword = hasFieldsToUpdate[1]
+                    ? passwords.hashAsync((String) body.get("password"))
+                    : CompletableFuture.completedFuture(existingUser.password());
+            return newPassword.thenAccept(passwordHash -> {
+                User updateUser =
+                        new User(
+                                existingUser.userId(),
+                                existingUser.username(),
+                                newEmail,
+                                passwordHash,
+                                existingUser.isAdmin());
+
+                // Fails on an email conflict (or a concurrent update of the same user)
+                if (!users.replace(existingUser, updateUser)) {
+                    throw new ConflictResponse("Conflict: Email already in use");
+                }
+
+                // ---------------------------------------------- RESPONSE -------------------------------------------
+                ctx.status(HttpStatus.OK);
+                Json.write(ctx, updateUser.toEditedView(hasFieldsToUpdate));
+            });
+        });
     }
 
     public void getOne(Context ctx) {
@@ -154,29 +161,49 @@ public class UsersController {
 
         // -------------------------------------------------- RESPONSE -----------------------------------------------
         ctx.status(HttpStatus.OK);
-        ctx.json(user.toListMap());
+        Json.write(ctx, user.toListView());
     }
 
     public void getMany(Context ctx) {
         // ------------------------------------------------ QUERY PARAM VALIDATION -----------------------------------
-        // validate that only 'username' query parameter is present
+        // validate that only 'username', 'limit' and 'cursor' query parameters are present
+        List<String> allowed = List.of("username", "limit", "cursor");
         for (String key : ctx.queryParamMap().keySet()) {
-            if (!"username".equals(key)) {
+            if (!allowed.contains(key)) {
                 throw new BadRequestResponse();
             }
         }
 
+        int limit = Pagination.limit(ctx);
+        String position = Pagination.cursor(ctx);
+        Integer after = null;
+        if (position != null) {
+            try {
+                after = Integer.parseInt(position);
+            } catch (NumberFormatException e) {
+                throw new BadRequestResponse("Invalid cursor");
+            }
+        }
+
         // -------------------------------------------------- FETCH USERS --------------------------------------------
         String username = ctx.queryParam("username");
 
-        List<Map<String,Object>> list = new ArrayList<>();
+        List<User.ListView> list = new ArrayList<>();
 
-        for (User user : this.users.values()) {
-            if (username != null && !user.username().equalsIgnoreCase(username)) {
-                continue;
+        if (username != null) {
+            User user = users.findByUsername(username);
+            if (user != null) {
+                list.add(user.toListView());
+            }
+        } else {
+            // Users in ascending userId order, one more than the page size to detect a next page
+            for (User user : users.page(after, limit + 1)) {
+                if (list.size() == limit) {
+                    Pagination.setNextCursor(ctx, String.valueOf(list.get(list.size() - 1).userId()));
+                    break;
+                }
+                list.add(user.toListView());
             }
-
-            list.add(user.toListMap());
         }
 
         // -------------------------------------------------- RESPONSE -----------------------------------------------
@@ -184,19 +211,18 @@ public class UsersController {
             ctx.status(HttpStatus.NO_CONTENT);
         } else {
             ctx.status(HttpStatus.OK);
-            ctx.json(list);
+            Json.write(ctx, list);
         }
     }
 
     public void delete(Context ctx) {
         // ------------------------------------------------- COOKIE VALIDATION ---------------------------------------
-        String session = verifySessionId(ctx.cookie("session_id"));
-        Integer userId = getUserIdFromSession(session);
+        Integer userId = SessionFilter.userId(ctx);
 
         // ------------------------------------------------ PATH PARAM VALIDATION ------------------------------------
         Integer usrId = ctx.pathParamAsClass("userId", Integer.class).get();
 
-        if (!users.containsKey(usrId)) {
+        if (users.get(usrId) == null) {
             throw new NotFoundResponse();
         }
 
@@ -210,28 +236,11 @@ public class UsersController {
 
         // ------------------------------------------------ DELETE USER & SESSION ------------------------------------
         users.remove(usrId);
-        cookies.remove(session);
+        // Log out every device of the user, not only this one
+        sessions.removeAllForUser(usrId);
 
         // -------------------------------------------------- RESPONSE -----------------------------------------------
         ctx.removeCookie("session_id");
         ctx.status(HttpStatus.NO_CONTENT);
     }
-
-    // Function utils
-    // Validate sessionId
-    String verifySessionId(String session) {
-        if (session == null || !cookies.containsKey(session)) {
-            throw new UnauthorizedResponse("Invalid or missing cookie");
-        }
-        return session;
-    }
-
-    // Get userId from sessionId
-    Integer getUserIdFromSession(String session) {
-        Integer userId = cookies.get(session);
-        if (userId == null) {
-            throw new UnauthorizedResponse("Invalid session");
-        }
-        return userId;
-    }
 }
@@ -0,0 +1,222 @@
+package ch.heigvd.utils;
+
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+import io.javalin.http.UnauthorizedResponse;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+// Per-route request metrics and gauges, exposed in the Prometheus text format.
+// Recording is lock-free: counters are LongAdders and latencies go to an HdrHistogram Recorder (wait-free
+// writers). Only the scrape takes a lock, per route, to swap the Recorder and fold its values into the window.
+public class Metrics {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final String START = "metrics.start";
+    private static final String PREFIX = "jitsusmon_";
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    // Quantiles are computed over the last WINDOW_SLICES minutes, the counters and the sum since the start
+    private static final int WINDOW_SLICES = 5;
+    private static final long SLICE_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    // Latencies are recorded in microseconds with 2 significant digits (1% precision), capped at one hour
+    private static final int SIGNIFICANT_DIGITS = 2;
+    private static final long MAX_MICROS = TimeUnit.HOURS.toMicros(1);
+
+    public record Route(String method, String path) {}
+
+    private record Gauge(String help, DoubleSupplier value) {}
+
+    private record Start(RouteStats stats, long nanos) {}
+
+    private final ConcurrentMap<Route, RouteStats> routes = new ConcurrentHashMap<>();
+    private final Map<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+    private final long created = System.nanoTime();
+
+    // Bearer token required by GET /metrics, null to leave it open (e.g. only reachable from the scraper's network)
+    private final byte[] token;
+
+    public Metrics(String token) {
+        this.token = token != null ? token.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    // ---- Recording ----
+
+    // beforeMatched hook: remember the route and when the request reached it (the after hooks only see "*")
+    public void start(Context ctx) {
+        ctx.attribute(START, new Start(routes.computeIfAbsent(
+                new Route(ctx.method().name(), ctx.endpointHandlerPath()), route -> new RouteStats()), System.nanoTime()));
+    }
+
+    // Request logger: runs once the response is complete, also after an exception or a failed async handler
+    public void end(Context ctx) {
+        Start start = ctx.attribute(START);
+        if (start != null) {
+            start.stats().record(ctx.status().getCode(), System.nanoTime() - start.nanos());
+        }
+    }
+
+    // A value read at each scrape, e.g. the size of a map
+    public void gauge(String name, String help, DoubleSupplier value) {
+        gauges.put(PREFIX + name, new Gauge(help, value));
+    }
+
+    // Share of the requests of a route answered with a status of this class (3 for 3xx...), 0 before any request
+    public double share(Route route, int statusClass) {
+        RouteStats stats = routes.get(route);
+        if (stats == null) {
+            return 0;
+        }
+        long total = stats.count();
+        return total == 0 ? 0 : (double) stats.statuses[statusClass].sum() / total;
+    }
+
+    // ---- Exposition ----
+
+    public void serve(Context ctx) {
+        if (token != null) {
+            String authorization = ctx.header(Header.AUTHORIZATION);
+            byte[] given = authorization != null && authorization.startsWith("Bearer ")
+                    ? authorization.substring(7).getBytes(StandardCharsets.UTF_8)
+                    : new byte[0];
+            if (!MessageDigest.isEqual(given, token)) {
+                throw new UnauthorizedResponse();
+            }
+        }
+        ctx.contentType(CONTENT_TYPE);
+        ctx.result(scrape());
+    }
+
+    String scrape() {
+        StringBuilder out = new StringBuilder();
+        long now = System.nanoTime() - created;
+        Map<Route, RouteStats> sorted = new TreeMap<>(
+                Comparator.comparing(Route::path).thenComparing(Route::method));
+        sorted.putAll(routes);
+
+        header(out, "http_requests_total", "Requests handled, by route and status class.", "counter");
+        sorted.forEach((route, stats) -> {
+            for (int i = 1; i < stats.statuses.length; i++) {
+                long count = stats.statuses[i].sum();
+                if (count > 0) {
+                    sample(out, "http_requests_total", labels(route) + ",status=\"" + i + "xx\"", count);
+                }
+            }
+        });
+
+        header(out, "http_request_duration_seconds",
+                "Request latency by route, quantiles over the last " + WINDOW_SLICES + " minutes.", "summary");
+        sorted.forEach((route, stats) -> {
+            Histogram window = stats.window(now);
+            for (double quantile : QUANTILES) {
+                double seconds = window.getTotalCount() == 0
+                        ? Double.NaN
+                        : window.getValueAtPercentile(quantile * 100) / 1e6;
+                sample(out, "http_request_duration_seconds", labels(route) + ",quantile=\"" + quantile + "\"", seconds);
+            }
+            sample(out, "http_request_duration_seconds_sum", labels(route), stats.nanos.sum() / 1e9);
+            sample(out, "http_request_duration_seconds_count", labels(route), stats.count());
+        });
+
+        gauges.forEach((name, gauge) -> {
+            out.append("# HELP ").append(name).append(' ').append(gauge.help()).append('\n');
+            out.append("# TYPE ").append(name).append(" gauge\n");
+            out.append(name).append(' ').append(format(gauge.value().getAsDouble())).append('\n');
+        });
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(PREFIX).append(name).append('{').append(labels).append("} ").append(format(value)).append('\n');
+    }
+
+    private static String labels(Route route) {
+        return "method=\"" + escape(route.method()) + "\",route=\"" + escape(route.path()) + "\"";
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) && Math.abs(value) < 1e15
+                ? Long.toString((long) value)
+                : Double.toString(value);
+    }
+
+    // ---- Per-route statistics ----
+
+    private static class RouteStats {
+        // Index = status / 100 (1xx to 5xx), 0 for anything outside
+        final LongAdder[] statuses = new LongAdder[6];
+        final LongAdder nanos = new LongAdder();
+        final Recorder recorder = new Recorder(SIGNIFICANT_DIGITS);
+
+        // Guarded by 'this', only touched by scrapes
+        private final Histogram[] slices = new Histogram[WINDOW_SLICES];
+        private long currentSlice;
+        private Histogram recycled;
+
+        RouteStats() {
+            for (int i = 0; i < statuses.length; i++) {
+                statuses[i] = new LongAdder();
+            }
+            for (int i = 0; i < slices.length; i++) {
+                slices[i] = new Histogram(SIGNIFICANT_DIGITS);
+            }
+        }
+
+        void record(int status, long elapsed) {
+            int statusClass = status / 100;
+            statuses[statusClass >= 1 && statusClass <= 5 ? statusClass : 0].increment();
+            nanos.add(elapsed);
+            recorder.recordValue(Math.min(Math.max(TimeUnit.NANOSECONDS.toMicros(elapsed), 0), MAX_MICROS));
+        }
+
+        long count() {
+            long total = 0;
+            for (LongAdder status : statuses) {
+                total += status.sum();
+            }
+            return total;
+        }
+
+        // Latencies of the last WINDOW_SLICES minutes. The values recorded since the previous scrape are
+        // counted in the current minute, which is close enough with the usual scrape intervals
+        synchronized Histogram window(long now) {
+            long slice = now / SLICE_NANOS;
+            for (long s = Math.max(currentSlice + 1, slice - WINDOW_SLICES + 1); s <= slice; s++) {
+                slices[(int) (s % WINDOW_SLICES)].reset();
+            }
+            currentSlice = Math.max(currentSlice, slice);
+
+            recycled = recorder.getIntervalHistogram(recycled);
+            slices[(int) (currentSlice % WINDOW_SLICES)].add(recycled);
+
+            Histogram window = new Histogram(SIGNIFICANT_DIGITS);
+            for (Histogram histogram : slices) {
+                window.add(histogram);
+            }
+            return window;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package ch.heigvd.utils;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+// Shared handling of the 'limit' and 'cursor' query parameters of the listing endpoints
+public final class Pagination {
+    public static final int DEFAULT_LIMIT = 100;
+    public static final int MAX_LIMIT = 1000;
+
+    // Response header carrying the cursor of the next page, absent on the last page
+    public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
+    private Pagination() {
+    }
+
+    // Read and validate the 'limit' query parameter
+    public static int limit(Context ctx) {
+        String raw = ctx.queryParam("limit");
+        if (raw == null) {
+            return DEFAULT_LIMIT;
+        }
+
+        int limit;
+        try {
+            limit = Integer.parseInt(raw);
+        } catch (NumberFormatException e) {
+            throw new BadRequestResponse("limit parameter must be a number between 1 and " + MAX_LIMIT);
+        }
+        if (limit < 1 || limit > MAX_LIMIT) {
+            throw new BadRequestResponse("limit parameter must be a number between 1 and " + MAX_LIMIT);
+        }
+        return limit;
+    }
+
+    // Read the 'cursor' query parameter and return the position it wraps, null when absent
+    public static String cursor(Context ctx) {
+        String raw = ctx.queryParam("cursor");
+        if (raw == null) {
+            return null;
+        }
+
+        try {
+            return new String(Base64.getUrlDecoder().decode(raw), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestResponse("Invalid cursor");
+        }
+    }
+
+    // Wrap a position into an opaque cursor and expose it to the client
+    public static void setNextCursor(Context ctx, String position) {
+        ctx.header(NEXT_CURSOR_HEADER, Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(position.getBytes(StandardCharsets.UTF_8)));
+    }
+}
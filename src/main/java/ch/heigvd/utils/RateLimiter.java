@@ -0,0 +1,82 @@
+package ch.heigvd.utils;
+
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import io.javalin.http.TooManyRequestsResponse;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+// Token bucket per key (userId, client IP...): 'capacity' requests at once, refilled at 'capacity' per 'period'.
+// Each bucket is a single AtomicLong holding the time at which it will be full again (GCRA form of the
+// token bucket), so a request costs one CAS and no lock. A full bucket is the same as no bucket at all:
+// the sweeper drops those, and the memory only holds the keys active during the last period.
+public class RateLimiter implements AutoCloseable {
+    private final long interval; // nanos to refill one token
+    private final long burst;    // nanos to refill the whole bucket
+    private final ConcurrentMap<Object, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService sweeper;
+
+    public RateLimiter(String name, int capacity, Duration period) {
+        this.interval = period.toNanos() / capacity;
+        this.burst = interval * capacity;
+
+        long sweepEvery = Math.max(1_000, Math.min(period.toMillis(), 60_000));
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "rate-limiter-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.sweeper.scheduleAtFixedRate(this::sweep, sweepEvery, sweepEvery, TimeUnit.MILLISECONDS);
+    }
+
+    // Run 'handler' only when the bucket of the request's key has a token left, 429 otherwise
+    public Handler limit(Function<Context, Object> key, Handler handler) {
+        return ctx -> {
+            long wait = acquire(key.apply(ctx));
+            if (wait > 0) {
+                ctx.header("Retry-After", String.valueOf(TimeUnit.NANOSECONDS.toSeconds(wait + 999_999_999)));
+                throw new TooManyRequestsResponse();
+            }
+            handler.handle(ctx);
+        };
+    }
+
+    // Take a token: 0 when granted, else the nanos to wait for the next one
+    public long acquire(Object key) {
+        AtomicLong bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(System.nanoTime()));
+        while (true) {
+            long now = System.nanoTime();
+            long fullAt = bucket.get();
+            // nanoTime values are only compared by difference, they may be negative
+            long next = (fullAt - now > 0 ? fullAt : now) + interval;
+            if (next - now > burst) {
+                return next - now - burst;
+            }
+            if (bucket.compareAndSet(fullAt, next)) {
+                return 0;
+            }
+        }
+    }
+
+    public int size() {
+        return buckets.size();
+    }
+
+    @Override
+    public void close() {
+        sweeper.shutdownNow();
+    }
+
+    private void sweep() {
+        long now = System.nanoTime();
+        // A request racing with the removal may get one free token, which is harmless
+        buckets.values().removeIf(bucket -> bucket.get() - now <= 0);
+    }
+}
@@ -10,8 +10,25 @@ async function fetchJSON(url, opts = {}) {
     }
 }
 
+// Every page of a paginated listing, following the X-Next-Cursor header of each page
+async function fetchAllPages(url) {
+    const items = [];
+    let cursor = null;
+    try {
+        do {
+            const res = await fetch(API_BASE + url + '?limit=1000' + (cursor ? '&cursor=' + encodeURIComponent(cursor) : ''));
+            if (!res.ok) return { status: res.status, body: await res.text() };
+            items.push(...await res.json());
+            cursor = res.headers.get('X-Next-Cursor');
+        } while (cursor);
+    } catch (err) {
+        return { error: true, message: err.message };
+    }
+    return items;
+}
+
 async function getUsers(outputId) {
-    const data = await fetchJSON('users');
+    const data = await fetchAllPages('users');
     document.getElementById(outputId).textContent = JSON.stringify(data, null, 2);
 }
 
@@ -40,7 +57,7 @@ async function editUser(outputId, data){
 }
 
 async function getAllMessages(outputId){
-    const data = await fetchJSON('messages');
+    const data = await fetchAllPages('messages');
     document.getElementById(outputId).textContent = JSON.stringify(data,null,2);
 }
 
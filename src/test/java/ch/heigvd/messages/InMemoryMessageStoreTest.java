@@ -0,0 +1,142 @@
+package ch.heigvd.messages;
+
+import ch.heigvd.persistence.Journal;
+import ch.heigvd.persistence.Mutation;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InMemoryMessageStoreTest {
+    private static final int MESSAGES = 2_000;
+
+    // Journal keeping the mutations in the order they were appended
+    private static class RecordingJournal implements Journal {
+        final List<Mutation> appended = new ArrayList<>();
+
+        @Override
+        public synchronized void appendAll(List<Mutation> mutations) {
+            appended.addAll(mutations);
+        }
+    }
+
+    @Test
+    void editRacingWithDeleteNeverResurrectsTheMessage() throws InterruptedException {
+        RecordingJournal journal = new RecordingJournal();
+        InMemoryMessageStore store = new InMemoryMessageStore(new ConcurrentHashMap<>(), journal);
+        Instant createdAt = Instant.now();
+        for (int i = 1; i <= MESSAGES; i++) {
+            store.insert(new Message(1, i, createdAt, null, "original " + i));
+        }
+
+        // One thread edits every message while the other deletes them
+        CountDownLatch start = new CountDownLatch(1);
+        Thread editor = Thread.ofPlatform().start(() -> {
+            await(start);
+            for (int i = 1; i <= MESSAGES; i++) {
+                store.replace(new Message(1, i, createdAt, Instant.now(), "edited zebra " + i));
+            }
+        });
+        Thread deleter = Thread.ofPlatform().start(() -> {
+            await(start);
+            for (int i = 1; i <= MESSAGES; i++) {
+                store.remove(i);
+            }
+        });
+        start.countDown();
+        editor.join();
+        deleter.join();
+
+        for (int i = 1; i <= MESSAGES; i++) {
+            assertNull(store.get(i));
+        }
+        assertEquals(0, store.size());
+        assertFalse(store.page(null, null, null, Integer.MAX_VALUE).hasNext());
+        assertFalse(store.page(1, null, null, Integer.MAX_VALUE).hasNext());
+        assertEquals(0, store.countOfUser(1));
+        assertTrue(store.search("zebra", 10).isEmpty());
+        assertTrue(store.search("original", 10).isEmpty());
+
+        // Replaying the journal gives the same state: the deletion of each message comes last
+        Map<Integer, Mutation> last = new HashMap<>();
+        for (Mutation mutation : journal.appended) {
+            if (mutation instanceof Mutation.MessageSaved saved) {
+                last.put(saved.message().msgId(), mutation);
+            } else if (mutation instanceof Mutation.MessageDeleted deleted) {
+                last.put(deleted.msgId(), mutation);
+            }
+        }
+        for (int i = 1; i <= MESSAGES; i++) {
+            assertInstanceOf(Mutation.MessageDeleted.class, last.get(i), "message " + i);
+        }
+    }
+
+    @Test
+    void editRacingWithDeleteIsVersionedBeforeTheTombstone() throws InterruptedException {
+        InMemoryMessageStore store = new InMemoryMessageStore(new ConcurrentHashMap<>(), Journal.NONE);
+        Instant createdAt = Instant.now();
+        for (int i = 1; i <= MESSAGES; i++) {
+            store.insert(new Message(1, i, createdAt, null, "original " + i));
+        }
+
+        // The change log is fed by the store, as MessagesController does
+        ChangeLog changes = new ChangeLog(0);
+        store.listen(new MessageStore.Listener() {
+            @Override
+            public void replaced(Message message) {
+                changes.recordUpsert(message.msgId());
+            }
+
+            @Override
+            public void removed(Message message) {
+                changes.recordDeletion(message.msgId());
+            }
+        });
+
+        CountDownLatch start = new CountDownLatch(1);
+        Thread editor = Thread.ofPlatform().start(() -> {
+            await(start);
+            for (int i = 1; i <= MESSAGES; i++) {
+                store.replace(new Message(1, i, createdAt, Instant.now(), "edited " + i));
+            }
+        });
+        Thread deleter = Thread.ofPlatform().start(() -> {
+            await(start);
+            for (int i = 1; i <= MESSAGES; i++) {
+                store.remove(i);
+            }
+        });
+        start.countDown();
+        editor.join();
+        deleter.join();
+
+        // A client syncing from the start learns that every message was deleted
+        Map<Integer, ChangeLog.Change> latest = new HashMap<>();
+        for (ChangeLog.Change change : changes.between(0, changes.version())) {
+            latest.put(change.msgId(), change);
+        }
+        for (int i = 1; i <= MESSAGES; i++) {
+            assertTrue(latest.get(i).isDeletion(), "message " + i);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
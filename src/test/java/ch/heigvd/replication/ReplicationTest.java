@@ -0,0 +1,200 @@
+package ch.heigvd.replication;
+
+import ch.heigvd.auth.InMemorySessionStore;
+import ch.heigvd.auth.Session;
+import ch.heigvd.messages.InMemoryMessageStore;
+import ch.heigvd.messages.Message;
+import ch.heigvd.messages.MessagesController;
+import ch.heigvd.persistence.Database;
+import ch.heigvd.persistence.Journal;
+import ch.heigvd.users.InMemoryUserStore;
+import ch.heigvd.users.User;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReplicationTest {
+    private static final Duration TIMEOUT = Duration.ofSeconds(30);
+
+    private final HttpClient client = HttpClient.newHttpClient();
+    private final List<AutoCloseable> closing = new ArrayList<>();
+    private final List<Process> processes = new ArrayList<>();
+
+    @TempDir
+    Path logs;
+
+    @AfterEach
+    void stop() throws Exception {
+        for (AutoCloseable resource : closing.reversed()) {
+            resource.close();
+        }
+        for (Process process : processes) {
+            process.destroy();
+            process.waitFor(10, TimeUnit.SECONDS);
+        }
+    }
+
+    // ---- In process: a leader and a follower on their stores ----
+
+    @Test
+    void followerWhoseCopyDivergedResynchronizes() throws Exception {
+        Node leader = new Node(new ReplicationLog(Journal.NONE, 1000));
+        ReplicationLeader server = new ReplicationLeader((ReplicationLog) leader.journal, leader.database, leader.sessions, 0);
+        closing.add(server);
+        Node copy = new Node(Journal.NONE);
+        ReplicationFollower follower = new ReplicationFollower(new InetSocketAddress("localhost", server.port()),
+                new Replica(copy.database, copy.users, copy.messages, copy.sessions));
+        closing.add(follower);
+
+        leader.users.insert(user(1, "ann"));
+        assertTrue(follower.awaitApplied(1, TIMEOUT));
+
+        // A user the leader does not have holds the username of the next one: the entry cannot be applied
+        copy.users.insert(user(99, "bob"));
+        leader.users.insert(user(2, "bob"));
+
+        // Applied after a new snapshot, which also removes the stale user
+        assertTrue(follower.awaitApplied(2, TIMEOUT));
+        assertEquals("bob", copy.users.get(2).username());
+        assertNull(copy.users.get(99));
+        assertEquals(2, copy.users.size());
+    }
+
+    // ---- Two JVMs: the servers as deployed ----
+
+    @Test
+    void followerForwardsTheClientOfEachLogin() throws Exception {
+        int leaderPort = freePort();
+        int replicationPort = freePort();
+        int followerPort = freePort();
+        start("leader", Map.of(
+                "JITSUSMON_PORT", String.valueOf(leaderPort),
+                "JITSUSMON_REPLICATION_ROLE", "leader",
+                "JITSUSMON_REPLICATION_PORT", String.valueOf(replicationPort),
+                "JITSUSMON_TRUST_PROXY", "true"));
+        // Behind the reverse proxy, as in production: the client is in X-Forwarded-For
+        start("follower", Map.of(
+                "JITSUSMON_PORT", String.valueOf(followerPort),
+                "JITSUSMON_REPLICATION_ROLE", "follower",
+                "JITSUSMON_REPLICATION_LEADER", "localhost:" + replicationPort,
+                "JITSUSMON_REPLICATION_LEADER_URL", "http://localhost:" + leaderPort,
+                "JITSUSMON_TRUST_PROXY", "true"));
+        URI follower = URI.create("http://localhost:" + followerPort);
+        awaitStatus(follower.resolve("/users"), 200);
+
+        // Read-your-writes: the signup is on the follower once it answers
+        HttpResponse<String> signup = post(follower, "/users", "203.0.113.1",
+                "{\"username\":\"ann\",\"email\":\"ann@example.com\",\"password\":\"password\"}");
+        assertEquals(201, signup.statusCode(), signup.body());
+        assertTrue(client.send(HttpRequest.newBuilder(follower.resolve("/users?username=ann")).build(),
+                HttpResponse.BodyHandlers.ofString()).body().contains("\"ann\""));
+
+        // The leader counts the signups and logins of each client (3 per minute here), not of the follower
+        String login = "{\"username\":\"ann\",\"password\":\"password\"}";
+        assertEquals(204, post(follower, "/login", "203.0.113.1", login).statusCode());
+        assertEquals(204, post(follower, "/login", "203.0.113.1", login).statusCode());
+        assertEquals(429, post(follower, "/login", "203.0.113.1", login).statusCode());
+        assertEquals(204, post(follower, "/login", "203.0.113.2", login).statusCode());
+    }
+
+    @Test
+    void leaderRefusesToIgnoreTheForwardedClient() throws Exception {
+        Process leader = start("leader", Map.of(
+                "JITSUSMON_PORT", String.valueOf(freePort()),
+                "JITSUSMON_REPLICATION_ROLE", "leader",
+                "JITSUSMON_REPLICATION_PORT", String.valueOf(freePort())));
+        assertTrue(leader.waitFor(TIMEOUT.toSeconds(), TimeUnit.SECONDS));
+        assertNotEquals(0, leader.exitValue());
+    }
+
+    // Stores of one node, wired as in Main
+    private static final class Node {
+        final Journal journal;
+        final ConcurrentMap<Integer, User> userMap = new ConcurrentHashMap<>();
+        final ConcurrentMap<Integer, Message> messageMap = new ConcurrentHashMap<>();
+        final ConcurrentMap<String, Session> cookies = new ConcurrentHashMap<>();
+        final Database database = new Database(userMap, messageMap, cookies);
+        final InMemoryUserStore users;
+        final InMemorySessionStore sessions;
+        final MessagesController messages;
+
+        Node(Journal journal) {
+            this.journal = journal;
+            this.users = new InMemoryUserStore(userMap, journal);
+            this.sessions = new InMemorySessionStore(cookies, journal, Duration.ofMinutes(30), Duration.ofHours(12));
+            this.messages = new MessagesController(new InMemoryMessageStore(messageMap, journal), users, sessions, false);
+        }
+    }
+
+    private static User user(int userId, String username) {
+        return new User(userId, username, username + "@example.com", "password", false);
+    }
+
+    // A server in its own JVM, with the classpath of the tests and cheap password hashes
+    private Process start(String name, Map<String, String> environment) throws IOException {
+        ProcessBuilder builder = new ProcessBuilder(
+                ProcessHandle.current().info().command().orElse("java"),
+                "-cp", System.getProperty("java.class.path"),
+                "ch.heigvd.Main");
+        builder.environment().putAll(environment);
+        builder.environment().put("JITSUSMON_PASSWORD_ITERATIONS", "1000");
+        builder.environment().put("JITSUSMON_AUTH_RATE_PER_MINUTE", "3");
+        builder.redirectErrorStream(true).redirectOutput(logs.resolve(name + ".log").toFile());
+        Process process = builder.start();
+        processes.add(process);
+        return process;
+    }
+
+    private void awaitStatus(URI uri, int status) throws InterruptedException {
+        long deadline = System.nanoTime() + TIMEOUT.toNanos();
+        while (System.nanoTime() < deadline) {
+            try {
+                if (client.send(HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.discarding()).statusCode() == status) {
+                    return;
+                }
+            } catch (IOException e) {
+                // Not listening yet
+            }
+            Thread.sleep(100);
+        }
+        throw new AssertionError(uri + " did not answer " + status + " in time");
+    }
+
+    private HttpResponse<String> post(URI server, String path, String clientIp, String body)
+            throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(server.resolve(path))
+                .header("Content-Type", "application/json")
+                .header("X-Forwarded-For", clientIp)
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+        return client.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package ch.heigvd.utils;
+
+import io.javalin.Javalin;
+import io.javalin.http.HttpStatus;
+import io.javalin.http.TooManyRequestsResponse;
+import io.javalin.http.UnauthorizedResponse;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MetricsTest {
+    private final HttpClient client = HttpClient.newHttpClient();
+    private Metrics metrics;
+    private Javalin app;
+
+    // Wired as in Main, on routes failing the ways the real ones do
+    @BeforeEach
+    void start() {
+        metrics = new Metrics(null);
+        app = Javalin.create(config -> config.requestLogger.http((ctx, elapsed) -> metrics.end(ctx)));
+        app.beforeMatched(metrics::start);
+
+        // Wrong password: rejected once the hash is checked, on another thread (as AuthController.login)
+        app.post("/login", ctx -> ctx.future(() -> CompletableFuture.runAsync(() -> {
+            if (!"secret".equals(ctx.body())) {
+                throw new UnauthorizedResponse();
+            }
+            ctx.status(HttpStatus.NO_CONTENT);
+        })));
+        app.post("/limited", ctx -> {
+            throw new TooManyRequestsResponse();
+        });
+        app.start(0);
+    }
+
+    @AfterEach
+    void stop() {
+        app.stop();
+    }
+
+    @Test
+    void countsEveryResponse() throws Exception {
+        assertEquals(401, post("/login", "wrong"));
+        assertEquals(401, post("/login", "wrong"));
+        assertEquals(204, post("/login", "secret"));
+        assertEquals(429, post("/limited", ""));
+
+        // The request logger runs after the response is sent
+        String scrape = awaitCount("POST", "/limited", 1);
+        assertTrue(scrape.contains(sample("POST", "/login", "4xx", 2)), scrape);
+        assertTrue(scrape.contains(sample("POST", "/login", "2xx", 1)), scrape);
+        assertTrue(scrape.contains(sample("POST", "/limited", "4xx", 1)), scrape);
+        assertEquals(2.0 / 3, metrics.share(new Metrics.Route("POST", "/login"), 4), 1e-9);
+    }
+
+    private int post(String path, String body) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + app.port() + path))
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+        return client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+
+    private String awaitCount(String method, String route, long count) throws InterruptedException {
+        String line = "jitsusmon_http_request_duration_seconds_count{method=\"" + method + "\",route=\"" + route + "\"} " + count;
+        for (int i = 0; i < 100; i++) {
+            String scrape = metrics.scrape();
+            if (scrape.contains(line)) {
+                return scrape;
+            }
+            Thread.sleep(20);
+        }
+        return metrics.scrape();
+    }
+
+    private static String sample(String method, String route, String status, long count) {
+        return "jitsusmon_http_requests_total{method=\"" + method + "\",route=\"" + route + "\",status=\"" + status + "\"} " + count;
+    }
+}